@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+
+/**
+ * MediaClock that follows the playback position of an AudioTrack, so video paced against
+ * it stays in sync with the audio.  Time zero is the first audio frame.
+ * <p>
+ * On API 19+ we use AudioTrack.getTimestamp(), which says when a given frame actually
+ * reached the speaker, and extrapolate from there.  Older releases only have the playback
+ * head position, which runs ahead of what's audible by the output latency, and only
+ * advances in steps of the mixer buffer size.
+ * <p>
+ * The clock stops while the track is paused or starved.  Sleeping uses the system clock.
+ * <p>
+ * Thread-safe.
+ */
+public class AudioClock implements MediaClock {
+    private final AudioTrack mTrack;
+    private final int mSampleRate;
+    private final AudioTimestamp mTimestamp;
+    private long mLastNsec;
+
+    /**
+     * Creates a clock for "track", which plays at "sampleRate" frames per second.
+     */
+    public AudioClock(AudioTrack track, int sampleRate) {
+        mTrack = track;
+        mSampleRate = sampleRate;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mTimestamp = new AudioTimestamp();
+        } else {
+            mTimestamp = null;
+        }
+    }
+
+    @Override
+    public synchronized long nanoTime() {
+        long posNsec;
+        if (mTimestamp != null && mTrack.getTimestamp(mTimestamp)) {
+            posNsec = framesToNsec(mTimestamp.framePosition);
+            if (mTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+                posNsec += System.nanoTime() - mTimestamp.nanoTime;
+            }
+        } else {
+            // The head position is an unsigned 32-bit frame count.
+            posNsec = framesToNsec(mTrack.getPlaybackHeadPosition() & 0xffffffffL);
+        }
+        mLastNsec = Math.max(mLastNsec, posNsec);
+        return mLastNsec;
+    }
+
+    @Override
+    public void sleep(long nsec) {
+        MonotonicClock.getInstance().sleep(nsec);
+    }
+
+    @Override
+    public long fromSystemNanos(long systemNanos) {
+        return systemNanos + (nanoTime() - System.nanoTime());
+    }
+
+    private long framesToNsec(long frames) {
+        return frames * 1000000000L / mSampleRate;
+    }
+}
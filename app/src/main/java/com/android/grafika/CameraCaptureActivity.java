@@ -42,6 +42,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.ProgramCache;
 import com.android.grafika.gles.Texture2dProgram;
 
 import java.io.File;
@@ -484,6 +485,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private File mOutputFile;
 
     private FullFrameRect mFullScreen;
+    private final ProgramCache mProgramCache = new ProgramCache();
 
     private final float[] mSTMatrix = new float[16];
     private int mTextureId;
@@ -545,6 +547,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mFullScreen.release(false);     // assume the GLSurfaceView EGL context is about
             mFullScreen = null;             //  to be destroyed
         }
+        Log.d(TAG, "renderer pausing: " + mProgramCache);
+        mProgramCache.release(false);
         mIncomingWidth = mIncomingHeight = -1;
     }
 
@@ -615,11 +619,11 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                 throw new RuntimeException("Unknown filter mode " + mNewFilter);
         }
 
-        // Do we need a whole new program?  (We want to avoid doing this if we don't have
-        // too -- compiling a program could be expensive.)
+        // Do we need a different program?  Compiling one could be expensive, so we keep
+        // them around; after the first time, switching back is just a lookup.
         if (programType != mFullScreen.getProgram().getProgramType()) {
-            mFullScreen.changeProgram(new Texture2dProgram(programType));
-            // If we created a new program, we need to initialize the texture width/height.
+            mFullScreen.changeProgram(mProgramCache.get(programType), false);
+            // If we changed programs, we need to initialize the texture width/height.
             mIncomingSizeUpdated = true;
         }
 
@@ -662,7 +666,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         // Set up the texture blitter that will be used for on-screen display.  This
         // is *not* applied to the recording, because that uses a separate shader.
         mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+                mProgramCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT), false);
 
         mTextureId = mFullScreen.createTextureObject();
 
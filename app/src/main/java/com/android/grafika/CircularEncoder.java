@@ -41,12 +41,18 @@ import java.nio.ByteBuffer;
  * which requires a bit more work for us but avoids allocations in the steady state.
  * <p>
  * Video must always start with a sync frame (a/k/a key frame, a/k/a I-frame).  When the
- * circular buffer wraps around, we either need to delete all of the data between the frame at
- * the head of the list and the next sync frame, or have the file save function know that
- * it needs to scan forward for a sync frame before it can start saving data.
+ * circular buffer wraps around, we delete all of the data between the frame at the head
+ * of the list and the next sync frame, so the oldest buffered frame is always a valid
+ * place to start saving.
  * <p>
  * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * and then go back to what we were doing.  Alternatively, the buffered range can be pinned
+ * and written by a separate muxer thread, so the encoder keeps draining while the file
+ * is written.
+ * <p>
+ * An audio encoder can be attached with {@link #setAudioEncoder}.  Its output is interleaved
+ * with the video in the same circular buffer, so both tracks are evicted together, at video
+ * GOP boundaries, and every save writes both.
  */
 public class CircularEncoder {
     private static final String TAG = MainActivity.TAG;
@@ -58,14 +64,16 @@ public class CircularEncoder {
     private EncoderThread mEncoderThread;
     private Surface mInputSurface;
     private MediaCodec mEncoder;
+    private int mAudioPacketRate;
 
     /**
      * Callback function definitions.  CircularEncoder caller must provide one.
      */
     public interface Callback {
         /**
-         * Called some time after saveVideo(), when all data has been written to the
-         * output file.
+         * Called some time after saveVideo() or saveVideoInBackground(), when all data has
+         * been written to the output file.  May be called on the encoder thread or the
+         * muxer thread.
          *
          * @param status Zero means success, nonzero indicates failure.
          */
@@ -90,6 +98,34 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
                            Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec,
+                CircularEncoderBuffer.STORAGE_HEAP, null, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     *
+     * @param storage        Where the buffered video lives; one of the
+     *                       CircularEncoderBuffer.STORAGE_* constants.
+     * @param backingFile    File to hold the buffered video for STORAGE_MAPPED_FILE.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+                           int storage, File backingFile, Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, storage, backingFile, 0, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface, leaving room in the buffer for an
+     * audio track to be attached later with {@link #setAudioEncoder}.
+     *
+     * @param audioPacketRate Packets per second the audio encoder will produce, e.g.
+     *                        sampleRate / 1024 for AAC.  Zero if there won't be audio.
+     *                        Only the meta-data is sized for it; audio data is small next
+     *                        to video, and just trims the span slightly.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+                           int storage, File backingFile, int audioPacketRate, Callback cb)
+            throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
@@ -104,7 +140,8 @@ public class CircularEncoder {
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
         CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate,
-                desiredSpanSec);
+                audioPacketRate, desiredSpanSec, storage, backingFile);
+        mAudioPacketRate = audioPacketRate;
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -196,6 +233,130 @@ public class CircularEncoder {
                 EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
     }
 
+    /**
+     * Initiates saving the currently-buffered frames to the specified output file, without
+     * interrupting the encoder.  The call returns immediately.  When the file save
+     * completes, the callback will be notified.
+     * <p>
+     * The buffered range is pinned and written by a separate thread, while the encoder
+     * thread keeps draining the encoder into the circular buffer.  Frames can continue to
+     * be submitted.  Only one save may be in progress at a time.
+     */
+    public void saveVideoInBackground(File outputFile) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO_BACKGROUND, outputFile));
+    }
+
+    /**
+     * Initiates an event capture: the buffered video from "preRollMsec" before now, plus
+     * everything the encoder produces for the next "postRollMsec", is written to the
+     * specified output file.  The call returns immediately.  When the file save completes,
+     * the callback will be notified.
+     * <p>
+     * The pre-roll starts at the nearest sync frame at or before the requested time, or at
+     * the oldest buffered sync frame if we don't have that much video.  The post-roll is
+     * streamed from the circular buffer to the muxer as it arrives, so frames should
+     * continue to be submitted.  Only one save or capture may be in progress at a time.
+     */
+    public void captureEvent(File outputFile, int preRollMsec, int postRollMsec) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_CAPTURE_EVENT, preRollMsec, postRollMsec,
+                outputFile));
+    }
+
+    /**
+     * Starts copying the encoder output to a crash-durable journal.  If the process dies,
+     * the video can be recovered on the next launch with {@link EncoderJournal#recover}.
+     * <p>
+     * Any previous journal in the file is discarded, so recover it first.  The journal is
+     * closed, and marked clean, when the encoder is shut down.
+     *
+     * @param journalFile File to hold the journal.
+     * @param size        Size of the journal, in bytes.
+     */
+    public void enableJournal(File journalFile, long size) throws IOException {
+        EncoderJournal journal = new EncoderJournal(journalFile, size);
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SET_JOURNAL, journal));
+    }
+
+    /**
+     * Attaches an audio encoder.  Its output will be buffered and saved along with the
+     * video.
+     * <p>
+     * The caller configures and starts the encoder, feeds it input, and releases it after
+     * calling {@link #shutdown()}.  We drain its output on the encoder thread whenever we
+     * drain the video encoder, and on {@link #audioAvailableSoon()}.
+     * <p>
+     * The buffer's meta-data is sized when the CircularEncoder is created, so pass the
+     * audio packet rate to the constructor.  Otherwise the meta-data runs out before the
+     * data does, and the buffer holds less than the requested span.
+     */
+    public void setAudioEncoder(MediaCodec audioEncoder) {
+        if (mAudioPacketRate == 0) {
+            Log.w(TAG, "HEY: buffer was not sized for audio, span will be reduced");
+        }
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SET_AUDIO_ENCODER, audioEncoder));
+    }
+
+    /**
+     * Notifies the encoder thread that the audio encoder has been given input, and should
+     * be drained soon.
+     */
+    public void audioAvailableSoon() {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_AUDIO_AVAILABLE_SOON));
+    }
+
+    /**
+     * Initiates saving the buffered video between "startUsec" and "endUsec" to the
+     * specified output file.  Equivalent to a single-clip {@link #saveClips}.
+     */
+    public void saveClip(File outputFile, long startUsec, long endUsec) {
+        saveClips(new File[] { outputFile }, new long[] { startUsec }, new long[] { endUsec });
+    }
+
+    /**
+     * Initiates saving several time ranges of the buffered video, each to its own output
+     * file.  The call returns immediately.  When all files have been written, the callback
+     * will be notified once.
+     * <p>
+     * Times are presentation time stamps, as provided to the encoder's input surface.
+     * Each clip starts at the nearest sync frame at or before its start time, and ends
+     * with the last frame at or before its end time.  All clips are written in a single
+     * pass over the buffered data, on a separate thread, so frames can continue to be
+     * submitted.  If any clip isn't covered by the buffer -- including one that starts
+     * before the oldest buffered sync frame -- nothing is saved.
+     */
+    public void saveClips(File[] outputFiles, long[] startUsec, long[] endUsec) {
+        if (outputFiles.length != startUsec.length || outputFiles.length != endUsec.length) {
+            throw new IllegalArgumentException("mismatched clip arrays");
+        }
+        ClipRequest req = new ClipRequest();
+        req.outputFiles = outputFiles;
+        req.startUsec = startUsec;
+        req.endUsec = endUsec;
+
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SAVE_CLIPS, req));
+    }
+
+    /**
+     * Arguments for saveClips(), passed to the encoder thread.
+     */
+    private static class ClipRequest {
+        File[] outputFiles;
+        long[] startUsec;
+        long[] endUsec;
+    }
+
     /**
      * Object that encapsulates the encoder thread.
      * <p>
@@ -212,14 +373,20 @@ public class CircularEncoder {
      * thread has been joined.
      */
     private static class EncoderThread extends Thread {
+        private static final int TRACK_VIDEO = CircularEncoderBuffer.TRACK_VIDEO;
+        private static final int TRACK_AUDIO = 1;
+
         private MediaCodec mEncoder;
-        private MediaFormat mEncodedFormat;
+        private MediaCodec mAudioEncoder;
+        private MediaFormat[] mEncodedFormats = new MediaFormat[2];     // indexed by track
         private MediaCodec.BufferInfo mBufferInfo;
 
         private EncoderHandler mHandler;
         private CircularEncoderBuffer mEncBuffer;
         private CircularEncoder.Callback mCallback;
         private int mFrameNum;
+        private MuxerThread mMuxerThread;
+        private EncoderJournal mJournal;
 
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
@@ -286,28 +453,47 @@ public class CircularEncoder {
         }
 
         /**
-         * Drains all pending output from the decoder, and adds it to the circular buffer.
+         * Drains all pending output from the encoders, and adds it to the circular buffer.
          */
         public void drainEncoder() {
+            drainCodec(mEncoder, TRACK_VIDEO);
+            if (mAudioEncoder != null) {
+                drainCodec(mAudioEncoder, TRACK_AUDIO);
+            }
+        }
+
+        /**
+         * Drains all pending output from one encoder, and adds it to the circular buffer
+         * as the specified track.
+         */
+        private void drainCodec(MediaCodec encoder, int track) {
             final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
 
-            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+            ByteBuffer[] encoderOutputBuffers = encoder.getOutputBuffers();
             while (true) {
-                int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                int encoderStatus = encoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
                 if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     // no output available yet
                     break;
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                     // not expected for an encoder
-                    encoderOutputBuffers = mEncoder.getOutputBuffers();
+                    encoderOutputBuffers = encoder.getOutputBuffers();
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     // Should happen before receiving buffers, and should only happen once.
                     // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
                     // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
                     // rather than extract the codec-specific data and reconstruct a new
                     // MediaFormat later, we just grab it here and keep it around.
-                    mEncodedFormat = mEncoder.getOutputFormat();
-                    Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
+                    mEncodedFormats[track] = encoder.getOutputFormat();
+                    Log.d(TAG, "encoder output format changed (track " + track + "): " +
+                            mEncodedFormats[track]);
+                    if (mJournal != null && track == TRACK_VIDEO) {
+                        try {
+                            mJournal.setFormat(mEncodedFormats[TRACK_VIDEO]);
+                        } catch (IOException ioe) {
+                            journalFailed(ioe);
+                        }
+                    }
                 } else if (encoderStatus < 0) {
                     Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                             encoderStatus);
@@ -333,8 +519,19 @@ public class CircularEncoder {
                         encodedData.position(mBufferInfo.offset);
                         encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                        mEncBuffer.add(encodedData, mBufferInfo.flags,
+                        if (mJournal != null && track == TRACK_VIDEO) {
+                            try {
+                                mJournal.append(encodedData, mBufferInfo.flags,
+                                        mBufferInfo.presentationTimeUs);
+                            } catch (IOException ioe) {
+                                journalFailed(ioe);
+                            }
+                        }
+                        mEncBuffer.add(track, encodedData, mBufferInfo.flags,
                                 mBufferInfo.presentationTimeUs);
+                        if (mMuxerThread != null) {
+                            mMuxerThread.packetAvailable();
+                        }
 
                         if (VERBOSE) {
                             Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
@@ -342,7 +539,7 @@ public class CircularEncoder {
                         }
                     }
 
-                    mEncoder.releaseOutputBuffer(encoderStatus, false);
+                    encoder.releaseOutputBuffer(encoderStatus, false);
 
                     if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         Log.w(TAG, "reached end of stream unexpectedly");
@@ -352,6 +549,51 @@ public class CircularEncoder {
             }
         }
 
+        /**
+         * Starts draining an audio encoder into the buffer as TRACK_AUDIO.
+         */
+        void setAudioEncoder(MediaCodec audioEncoder) {
+            mAudioEncoder = audioEncoder;
+        }
+
+        /**
+         * Starts using the journal.  If we already have the output format, record it now.
+         */
+        void setJournal(EncoderJournal journal) {
+            closeJournal();
+            mJournal = journal;
+            if (mEncodedFormats[TRACK_VIDEO] != null) {
+                try {
+                    mJournal.setFormat(mEncodedFormats[TRACK_VIDEO]);
+                } catch (IOException ioe) {
+                    journalFailed(ioe);
+                }
+            }
+        }
+
+        /**
+         * Stops journaling after a write failure.  We keep recording into the circular
+         * buffer; losing crash durability isn't a reason to stop.
+         */
+        private void journalFailed(IOException ioe) {
+            Log.w(TAG, "journal write failed, disabling", ioe);
+            closeJournal();
+        }
+
+        /**
+         * Closes the journal, if any.
+         */
+        private void closeJournal() {
+            if (mJournal != null) {
+                try {
+                    mJournal.close();
+                } catch (IOException ioe) {
+                    Log.w(TAG, "journal close failed", ioe);
+                }
+                mJournal = null;
+            }
+        }
+
         /**
          * Drains the encoder output.
          * <p>
@@ -381,52 +623,178 @@ public class CircularEncoder {
         void saveVideo(File outputFile) {
             if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
 
-            int index = mEncBuffer.getFirstIndex();
+            if (mEncBuffer.isPinned()) {
+                Log.w(TAG, "HEY: file save is already in progress");
+                mCallback.fileSaveComplete(3);
+                return;
+            }
+            int index = mEncBuffer.pin();
             if (index < 0) {
                 Log.w(TAG, "Unable to get first index");
                 mCallback.fileSaveComplete(1);
                 return;
             }
 
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            MediaMuxer muxer = null;
-            int result = -1;
-            try {
-                muxer = new MediaMuxer(outputFile.getPath(),
-                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
-                muxer.start();
+            // Same muxing code as the background save, just run on this thread.
+            MuxerThread muxer = new MuxerThread(new File[] { outputFile }, new int[] { 0 },
+                    new long[] { mEncBuffer.getPtsUsec(index) }, new long[] { Long.MAX_VALUE },
+                    mEncodedFormats.clone(), mEncBuffer, index, false, mCallback);
+            muxer.run();
+        }
 
-                do {
-                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
-                    if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
-                    }
-                    muxer.writeSampleData(videoTrack, buf, info);
-                    index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
-                result = 0;
-            } catch (IOException ioe) {
-                Log.w(TAG, "muxer failed", ioe);
-                result = 2;
-            } finally {
-                if (muxer != null) {
-                    muxer.stop();
-                    muxer.release();
-                }
+        /**
+         * Pins the buffered data and hands it to a muxer thread.
+         * <p>
+         * We drain the encoder first, so the snapshot includes everything that's come out
+         * so far.  From here on we keep draining as usual; the pinned packets won't be
+         * evicted until the muxer thread has written them.
+         */
+        void saveVideoInBackground(File outputFile) {
+            if (VERBOSE) Log.d(TAG, "saveVideoInBackground " + outputFile);
+
+            if (mEncBuffer.isPinned()) {
+                Log.w(TAG, "HEY: file save is already in progress");
+                mCallback.fileSaveComplete(3);
+                return;
             }
+            drainEncoder();
 
+            int index = mEncBuffer.pin();
+            if (index < 0) {
+                Log.w(TAG, "Unable to get first index");
+                mCallback.fileSaveComplete(1);
+                return;
+            }
+
+            joinMuxerThread();      // previous one is done, just clean it up
+            mMuxerThread = new MuxerThread(new File[] { outputFile }, new int[] { 0 },
+                    new long[] { mEncBuffer.getPtsUsec(index) }, new long[] { Long.MAX_VALUE },
+                    mEncodedFormats.clone(), mEncBuffer, index, false, mCallback);
+            mMuxerThread.start();
+        }
+
+        /**
+         * Pins the pre-roll, and starts a muxer thread that writes it out and then follows
+         * the head of the buffer until the post-roll deadline.
+         */
+        void captureEvent(File outputFile, int preRollMsec, int postRollMsec) {
             if (VERBOSE) {
-                Log.d(TAG, "muxer stopped, result=" + result);
+                Log.d(TAG, "captureEvent " + outputFile + " pre=" + preRollMsec +
+                        " post=" + postRollMsec);
+            }
+
+            if (mEncBuffer.isPinned()) {
+                Log.w(TAG, "HEY: file save is already in progress");
+                mCallback.fileSaveComplete(3);
+                return;
+            }
+            drainEncoder();
+
+            long triggerUsec = mEncBuffer.getLastPtsUsec();
+            int index = mEncBuffer.getSyncIndexBefore(triggerUsec - preRollMsec * 1000L);
+            if (index < 0) {
+                Log.w(TAG, "Unable to get first index");
+                mCallback.fileSaveComplete(1);
+                return;
+            }
+            mEncBuffer.pin(index, true);
+
+            joinMuxerThread();      // previous one is done, just clean it up
+            long endUsec = triggerUsec + postRollMsec * 1000L - 1;
+            mMuxerThread = new MuxerThread(new File[] { outputFile }, new int[] { 0 },
+                    new long[] { mEncBuffer.getPtsUsec(index) }, new long[] { endUsec },
+                    mEncodedFormats.clone(), mEncBuffer, index, true, mCallback);
+            mMuxerThread.start();
+        }
+
+        /**
+         * Locates each clip in the buffer, pins the whole range, and starts a muxer thread
+         * that writes all of the clips in one pass.
+         * <p>
+         * Both ends of each clip are found with a binary search on the presentation time
+         * stamps.  The start of each clip is handed to the muxer thread as a packet offset
+         * from the start of the pinned range (plus the PTS of that sync frame, so the other
+         * tracks start at the same point), the end as a PTS.
+         */
+        void saveClips(ClipRequest req) {
+            if (VERBOSE) Log.d(TAG, "saveClips count=" + req.outputFiles.length);
+
+            if (mEncBuffer.isPinned()) {
+                Log.w(TAG, "HEY: file save is already in progress");
+                mCallback.fileSaveComplete(3);
+                return;
+            }
+            drainEncoder();
+
+            final int count = req.outputFiles.length;
+            final int oldest = mEncBuffer.getFirstIndex();
+            if (oldest < 0) {
+                mCallback.fileSaveComplete(1);
+                return;
+            }
+            final long oldestUsec = mEncBuffer.getPtsUsec(oldest);
+            int[] startIndex = new int[count];
+            int[] endIndex = new int[count];
+            int firstIndex = -1;
+            for (int i = 0; i < count; i++) {
+                // getSyncIndexBefore() hands back the oldest sync frame for times before
+                // the start of the buffer, which would quietly cut the front off the clip.
+                startIndex[i] = mEncBuffer.getSyncIndexBefore(req.startUsec[i]);
+                endIndex[i] = mEncBuffer.getIndexBefore(req.endUsec[i]);
+                if (req.startUsec[i] < oldestUsec || startIndex[i] < 0 || endIndex[i] < 0 ||
+                        mEncBuffer.getDistance(oldest, endIndex[i]) <
+                        mEncBuffer.getDistance(oldest, startIndex[i])) {
+                    Log.w(TAG, "Clip " + i + " (" + req.startUsec[i] + "-" + req.endUsec[i] +
+                            ") is not in the buffer");
+                    mCallback.fileSaveComplete(1);
+                    return;
+                }
+                if (firstIndex < 0 || mEncBuffer.getDistance(oldest, startIndex[i]) <
+                        mEncBuffer.getDistance(oldest, firstIndex)) {
+                    firstIndex = startIndex[i];
+                }
+            }
+
+            int[] startOffset = new int[count];
+            long[] startPts = new long[count];
+            for (int i = 0; i < count; i++) {
+                startOffset[i] = mEncBuffer.getDistance(firstIndex, startIndex[i]);
+                startPts[i] = mEncBuffer.getPtsUsec(startIndex[i]);
+            }
+            mEncBuffer.pin(firstIndex, false);
+
+            joinMuxerThread();      // previous one is done, just clean it up
+            mMuxerThread = new MuxerThread(req.outputFiles, startOffset, startPts,
+                    req.endUsec.clone(), mEncodedFormats.clone(), mEncBuffer, firstIndex, false,
+                    mCallback);
+            mMuxerThread.start();
+        }
+
+        /**
+         * Waits for the muxer thread, if any, to finish.  An event capture that is still
+         * waiting for post-roll is cut short.
+         */
+        private void joinMuxerThread() {
+            if (mMuxerThread != null) {
+                mMuxerThread.requestStop();
+                try {
+                    mMuxerThread.join();
+                } catch (InterruptedException ie) {
+                    Log.w(TAG, "Muxer thread join() was interrupted", ie);
+                }
+                mMuxerThread = null;
             }
-            mCallback.fileSaveComplete(result);
         }
 
         /**
          * Tells the Looper to quit.
+         * <p>
+         * If a background save is in progress, we let it finish writing what it has first.
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
+            joinMuxerThread();
+            closeJournal();
             Looper.myLooper().quit();
         }
 
@@ -440,6 +808,12 @@ public class CircularEncoder {
             public static final int MSG_FRAME_AVAILABLE_SOON = 1;
             public static final int MSG_SAVE_VIDEO = 2;
             public static final int MSG_SHUTDOWN = 3;
+            public static final int MSG_SAVE_VIDEO_BACKGROUND = 4;
+            public static final int MSG_CAPTURE_EVENT = 5;
+            public static final int MSG_SAVE_CLIPS = 6;
+            public static final int MSG_SET_JOURNAL = 7;
+            public static final int MSG_SET_AUDIO_ENCODER = 8;
+            public static final int MSG_AUDIO_AVAILABLE_SOON = 9;
 
             // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
             // but no real harm in it.
@@ -475,10 +849,287 @@ public class CircularEncoder {
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
                         break;
+                    case MSG_SAVE_VIDEO_BACKGROUND:
+                        encoderThread.saveVideoInBackground((File) msg.obj);
+                        break;
+                    case MSG_CAPTURE_EVENT:
+                        encoderThread.captureEvent((File) msg.obj, msg.arg1, msg.arg2);
+                        break;
+                    case MSG_SAVE_CLIPS:
+                        encoderThread.saveClips((ClipRequest) msg.obj);
+                        break;
+                    case MSG_SET_JOURNAL:
+                        encoderThread.setJournal((EncoderJournal) msg.obj);
+                        break;
+                    case MSG_SET_AUDIO_ENCODER:
+                        encoderThread.setAudioEncoder((MediaCodec) msg.obj);
+                        break;
+                    case MSG_AUDIO_AVAILABLE_SOON:
+                        encoderThread.drainEncoder();
+                        break;
                     default:
                         throw new RuntimeException("unknown message " + what);
                 }
             }
         }
     }
+
+    /**
+     * Writes a pinned range of the circular buffer to one or more .mp4 files.
+     * <p>
+     * Runs concurrently with the encoder thread, which keeps adding packets to the buffer.
+     * We release each GOP as soon as we're done with it, so the encoder can reuse the space.
+     * <p>
+     * The tracks are interleaved in the buffer in the order the encoders produced them,
+     * which isn't quite PTS order.  We keep a cursor per track and always write the
+     * earliest packet next, so the muxer sees all tracks in PTS order.
+     * <p>
+     * Each output file starts at a sync frame, identified by its offset from the first
+     * pinned packet.  Packets from other tracks are included if they're no earlier than that
+     * sync frame.  Each file ends at a PTS.  We walk the pinned range once, handing each
+     * packet to every muxer whose range includes it.
+     * <p>
+     * For an event capture, the pinned range follows the head of the buffer, and we keep
+     * writing packets as the encoder thread adds them until we reach the end time.
+     */
+    private static class MuxerThread extends Thread {
+        private File[] mOutputFiles;
+        private int[] mStartOffset;
+        private long[] mStartPtsUsec;
+        private long[] mEndPtsUsec;
+        private MediaFormat[] mTrackFormats;
+        private CircularEncoderBuffer mEncBuffer;
+        private int mFirstIndex;
+        private boolean mFollowHead;
+        private CircularEncoder.Callback mCallback;
+
+        private final Object mLock = new Object();
+        private boolean mStopRequested;     // guarded by mLock
+
+        /**
+         * @param startOffset  Offset of each file's first sync frame from "firstIndex".
+         * @param startPtsUsec PTS of each file's first sync frame.
+         * @param endPtsUsec   PTS of the last packet to include in each file (inclusive).
+         * @param trackFormats Output format of each track; tracks with a null format are
+         *                     not written.
+         * @param followHead   If set, keep following the head of the buffer until we've
+         *                     written everything up to the end time.
+         */
+        public MuxerThread(File[] outputFiles, int[] startOffset, long[] startPtsUsec,
+                           long[] endPtsUsec, MediaFormat[] trackFormats,
+                           CircularEncoderBuffer encBuffer, int firstIndex, boolean followHead,
+                           CircularEncoder.Callback callback) {
+            mOutputFiles = outputFiles;
+            mStartOffset = startOffset;
+            mStartPtsUsec = startPtsUsec;
+            mEndPtsUsec = endPtsUsec;
+            mTrackFormats = trackFormats;
+            mEncBuffer = encBuffer;
+            mFirstIndex = firstIndex;
+            mFollowHead = followHead;
+            mCallback = callback;
+            setName("CircularEncoder muxer");
+        }
+
+        /**
+         * Wakes us up if we're waiting for post-roll.  Call from the encoder thread after
+         * adding a packet to the buffer.
+         */
+        public void packetAvailable() {
+            synchronized (mLock) {
+                mLock.notify();
+            }
+        }
+
+        /**
+         * Asks us to stop waiting for post-roll and finish the file with what we have.
+         */
+        public void requestStop() {
+            synchronized (mLock) {
+                mStopRequested = true;
+                mLock.notify();
+            }
+        }
+
+        /**
+         * Returns the index of the packet after "index".  When following the head, blocks
+         * until it has been added.  Returns -1 when we're done.
+         */
+        private int waitForNextIndex(int index) {
+            if (!mFollowHead) {
+                return mEncBuffer.getNextPinnedIndex(index);
+            }
+            synchronized (mLock) {
+                while (true) {
+                    int next = mEncBuffer.getNextPinnedIndex(index);
+                    if (next >= 0 || mStopRequested) {
+                        return next;
+                    }
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) { /* not expected */ }
+                }
+            }
+        }
+
+        /**
+         * Returns the index of the next packet on "track" after "index", or -1 if there
+         * are no more at or before "endPts".
+         * <p>
+         * We give up as soon as we skip over a packet from another track that is past the
+         * end.  Otherwise, if one encoder stalls or stops before the other, we'd wait
+         * forever (when following the head) for a packet that's never coming, and the
+         * capture would never finish.
+         */
+        private int nextIndexOnTrack(int index, int track, long endPts) {
+            while (true) {
+                index = waitForNextIndex(index);
+                if (index < 0 || mEncBuffer.getTrack(index) == track) {
+                    return index;
+                }
+                if (mEncBuffer.getPtsUsec(index) > endPts) {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            final int count = mOutputFiles.length;
+            final int trackCount = mTrackFormats.length;
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            MediaMuxer[] muxers = new MediaMuxer[count];
+            boolean[] muxerWrote = new boolean[count];  // started, and got at least one sample
+            int[][] muxerTracks = new int[count][trackCount];
+            int result = -1;
+
+            long lastEndPts = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                lastEndPts = Math.max(lastEndPts, mEndPtsUsec[i]);
+            }
+
+            // One cursor per track.  The first pinned packet is always a video sync frame.
+            int[] cursors = new int[trackCount];
+            for (int t = 0; t < trackCount; t++) {
+                if (mTrackFormats[t] == null) {
+                    cursors[t] = -1;
+                } else if (mEncBuffer.getTrack(mFirstIndex) == t) {
+                    cursors[t] = mFirstIndex;
+                } else {
+                    cursors[t] = nextIndexOnTrack(mFirstIndex, t, lastEndPts);
+                }
+            }
+
+            // Where we last advanced the pin to, and how many packets that is past the first
+            // one.  Every cursor is at or after the pin, and nothing from the pin on can be
+            // evicted, so distances measured from the pin are always in order.  Distances
+            // from mFirstIndex are not: when following the head, the capture may run on
+            // for more packets than the meta-data ring holds, and once it has wrapped past
+            // mFirstIndex, a newer packet can look closer to it than an older one.
+            int pinIndex = mFirstIndex;
+            int pinOffset = 0;
+
+            try {
+                for (int i = 0; i < count; i++) {
+                    muxers[i] = new MediaMuxer(mOutputFiles[i].getPath(),
+                            MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    for (int t = 0; t < trackCount; t++) {
+                        if (mTrackFormats[t] != null) {
+                            muxerTracks[i][t] = muxers[i].addTrack(mTrackFormats[t]);
+                        }
+                    }
+                    muxers[i].start();
+                }
+
+                while (true) {
+                    // Pick the track with the earliest packet.
+                    int track = -1;
+                    long pts = Long.MAX_VALUE;
+                    for (int t = 0; t < trackCount; t++) {
+                        if (cursors[t] >= 0 && mEncBuffer.getPtsUsec(cursors[t]) < pts) {
+                            track = t;
+                            pts = mEncBuffer.getPtsUsec(cursors[t]);
+                        }
+                    }
+                    if (track < 0) {
+                        break;
+                    } else if (pts > lastEndPts) {
+                        if (VERBOSE) Log.d(TAG, "reached end of range");
+                        break;
+                    }
+
+                    int index = cursors[track];
+                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
+                    int offset = pinOffset + mEncBuffer.getDistance(pinIndex, index);
+                    if (VERBOSE) {
+                        Log.d(TAG, "SAVE " + index + " track=" + track + " flags=0x" +
+                                Integer.toHexString(info.flags));
+                    }
+                    for (int i = 0; i < count; i++) {
+                        if (offset >= mStartOffset[i] && pts >= mStartPtsUsec[i] &&
+                                pts <= mEndPtsUsec[i]) {
+                            muxers[i].writeSampleData(muxerTracks[i][track], buf, info);
+                            muxerWrote[i] = true;
+                        }
+                    }
+
+                    // Advance this track, and let go of whatever all tracks are done with.
+                    cursors[track] = nextIndexOnTrack(index, track, lastEndPts);
+                    int oldest = -1;
+                    for (int t = 0; t < trackCount; t++) {
+                        if (cursors[t] >= 0 && (oldest < 0 ||
+                                mEncBuffer.getDistance(pinIndex, cursors[t]) <
+                                mEncBuffer.getDistance(pinIndex, oldest))) {
+                            oldest = cursors[t];
+                        }
+                    }
+                    if (oldest >= 0) {
+                        pinOffset += mEncBuffer.getDistance(pinIndex, oldest);
+                        pinIndex = oldest;
+                        mEncBuffer.advancePin(oldest);
+                    }
+                }
+                result = 0;
+            } catch (IOException ioe) {
+                Log.w(TAG, "muxer failed", ioe);
+                result = 2;
+            } catch (RuntimeException re) {
+                // MediaMuxer reports most problems (bad format, bad sample) this way.
+                Log.w(TAG, "muxer failed", re);
+                result = 2;
+            } finally {
+                mEncBuffer.advancePin(-1);
+            }
+
+            // MediaMuxer.stop() throws if the muxer never started, or was given no samples,
+            // so only stop the ones that have something to finish.  Don't let a failure
+            // here keep us from reporting back.
+            for (int i = 0; i < count; i++) {
+                if (muxers[i] == null) {
+                    continue;
+                }
+                try {
+                    if (muxerWrote[i]) {
+                        muxers[i].stop();
+                    } else if (result == 0) {
+                        Log.w(TAG, "HEY: nothing to write to " + mOutputFiles[i]);
+                        result = 1;
+                    }
+                } catch (RuntimeException re) {
+                    Log.w(TAG, "muxer stop failed for " + mOutputFiles[i], re);
+                    result = 2;
+                }
+                try {
+                    muxers[i].release();
+                } catch (RuntimeException re) {
+                    Log.w(TAG, "muxer release failed", re);
+                }
+            }
+
+            if (VERBOSE) {
+                Log.d(TAG, "muxer stopped, result=" + result);
+            }
+            mCallback.fileSaveComplete(result);
+        }
+    }
 }
@@ -19,7 +19,12 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Holds encoded video data in a circular buffer.
@@ -27,13 +32,52 @@ import java.nio.ByteBuffer;
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
  * (flags and PTS).
  * <p>
- * Not thread-safe.
+ * Packets from several tracks (e.g. video and audio) may be interleaved in the buffer.
+ * Track 0 is the video track, and its sync frames define the GOPs: eviction removes
+ * everything, on every track, from the oldest video sync frame up to the next one, so the
+ * tracks always cover the same span.
+ * <p>
+ * Not thread-safe, with one exception: a range of packets may be pinned with
+ * {@link #pin()} and then read from another thread with {@link #getChunk},
+ * {@link #getNextPinnedIndex} and {@link #advancePin} while the owning thread keeps
+ * adding packets.  Pinned packets are never evicted.
  */
 public class CircularEncoderBuffer {
     private static final String TAG = MainActivity.TAG;
     private static final boolean EXTRA_DEBUG = true;
     private static final boolean VERBOSE = false;
 
+    /**
+     * Packet data is held in a byte[] on the managed heap.  Packets that straddle the end
+     * of the ring are copied into a freshly-allocated buffer by {@link #getChunk}.
+     */
+    public static final int STORAGE_HEAP = 0;
+
+    /**
+     * Packet data is held in a "direct" (off-heap) ByteBuffer, followed by a mirror of the
+     * start of the ring.  Every packet can be handed out as a contiguous region, so
+     * {@link #getChunk} never allocates or copies.
+     */
+    public static final int STORAGE_DIRECT = 1;
+
+    /**
+     * Like STORAGE_DIRECT, but the ByteBuffer is a MappedByteBuffer over a preallocated file.
+     * The span is limited by free disk space rather than by the Java heap, and the kernel
+     * is free to page the data out.  The meta-data arrays stay in memory.
+     */
+    public static final int STORAGE_MAPPED_FILE = 2;
+
+    /**
+     * Packet data is held in fixed-size direct slabs borrowed from a {@link SlabPool}.
+     * Packets never straddle slabs, so every packet is contiguous.  The number of slabs in
+     * use follows the measured bit rate, so the buffer holds roughly the desired span even
+     * if the encoder over- or undershoots the requested bit rate.
+     */
+    public static final int STORAGE_SLABS = 3;
+
+    /** Track index of the video track, whose sync frames define GOPs. */
+    public static final int TRACK_VIDEO = 0;
+
     // Raw data (e.g. AVC NAL units) held here.
     //
     // The MediaMuxer writeSampleData() function takes a ByteBuffer.  If it's a "direct"
@@ -41,12 +85,40 @@ public class CircularEncoderBuffer {
     // JNI functions to access the backing byte[] (which, in the current VM, is done without
     // copying the data).
     //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
+    // For STORAGE_HEAP it's much more convenient to work with a byte[], so we just wrap it
+    // with a ByteBuffer as needed.  This is a bit awkward when we hit the edge of the buffer,
+    // but for that we can just do an allocation and data copy (we know it happens at most
+    // once per file save operation).
+    //
+    // For STORAGE_DIRECT and STORAGE_MAPPED_FILE, mDataBuffer is null and the ByteBuffer
+    // has mMirrorLength extra bytes past the end of the ring.  When a packet wraps around,
+    // the part that lands at the start of the ring is also written into the mirror region,
+    // so the whole packet can be read from [start, start+length).  This costs one extra
+    // copy of the wrapped bytes on the encoder thread, which is cheap compared to an
+    // allocateDirect() per save.
     private ByteBuffer mDataBufferWrapper;
     private byte[] mDataBuffer;
+    private int mDataLength;
+    private int mMirrorLength;
+
+    // Slab storage (STORAGE_SLABS).  Slabs in use are held in a ring, oldest first, using
+    // the same head/tail convention as the meta-data.  New packets go into the newest slab
+    // at mSlabWritePos; when one doesn't fit, we borrow another slab, provided we're under
+    // mSlabLimit.  When eviction moves the tail packet out of a slab, the slab goes back to
+    // the pool.  For slab storage, mPacketStart holds the offset within the slab.
+    //
+    // mSlabLimit is recomputed from the bytes/sec measured between sync frames.
+    private SlabPool mSlabPool;
+    private ByteBuffer[] mSlabRing;
+    private int mSlabHead;
+    private int mSlabTail;
+    private int mSlabWritePos;
+    private int mSlabLimit;
+    private int[] mPacketSlab;
+    private long mDesiredSpanUsec;
+    private long mMeasuredBytesPerSec;
+    private long mLastSyncPtsUsec = -1;
+    private long mBytesSinceSync;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
@@ -54,37 +126,226 @@ public class CircularEncoderBuffer {
     private long[] mPacketPtsUsec;
     private int[] mPacketStart;
     private int[] mPacketLength;
+    private int[] mPacketTrack;
 
     // Data is added at head and removed from tail.  Head points to an empty node, so if
     // head==tail the list is empty.
     private int mMetaHead;
     private int mMetaTail;
 
+    // Meta-data indices of the sync frames currently in the buffer, oldest first.  Same
+    // head/tail convention as the meta-data.  Every sync frame occupies a meta-data slot,
+    // so this can't overflow if it's the same size as the meta-data arrays.
+    //
+    // We evict whole GOPs, so the tail packet is always the oldest sync frame (unless we
+    // haven't seen one yet).  That keeps getFirstIndex() constant-time, and means the
+    // span reported by computeTimeSpanUsec() is all saveable.
+    private int[] mSyncIndex;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Pinned range, used for saving on another thread.  mPinEnd is the (exclusive) end of
+    // the range, set by the owning thread in pin().  mPinNext is the next packet the
+    // reader hasn't finished with yet, or -1 if nothing is pinned; the reader advances it
+    // as it goes, which lets us reclaim GOPs that have already been written.
+    //
+    // If mPinFollowsHead is set, the end of the range moves forward as packets are added,
+    // so the reader can keep streaming new packets.  The volatile write to mPinEnd in add()
+    // is what makes the new packet's meta-data and contents visible to the reader.
+    private volatile int mPinEnd;
+    private volatile int mPinNext = -1;
+    private boolean mPinFollowsHead;
+
+    // Set when we had to drop a packet because the data it depends on was pinned.  The
+    // following packets are useless until the next sync frame arrives.
+    private boolean mDropUntilSync;
+
     /**
-     * Allocates the circular buffers we use for encoded data and meta-data.
+     * Allocates the circular buffers we use for encoded data and meta-data, with the
+     * encoded data held on the managed heap.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
+        // Heap storage never touches the filesystem, so there's no IOException to declare.
+        initHeap(computeDataSize(bitRate, desiredSpanSec));
+        initMetaData(frameRate, desiredSpanSec);
+    }
+
+    /**
+     * Allocates the circular buffers we use for meta-data, with the encoded data held in
+     * slabs borrowed from "pool".  The pool's slab size must be larger than the biggest
+     * packet we expect; it may be shared with other buffers.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+            SlabPool pool) {
+        initMetaData(frameRate, desiredSpanSec);
+        initSlabs(bitRate, desiredSpanSec, pool);
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data.
+     *
+     * @param storage     Where the encoded data lives; one of the STORAGE_* constants.
+     * @param backingFile File to map for STORAGE_MAPPED_FILE; ignored otherwise.  The file
+     *                    is created or resized as needed, and may be reused across runs.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec, int storage,
+            File backingFile) throws IOException {
+        this(bitRate, frameRate, 0, desiredSpanSec, storage, backingFile);
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data, with room in
+     * the meta-data for packets from other tracks as well as video.
+     *
+     * @param extraPacketRate Packets per second from tracks other than video, e.g.
+     *                        sampleRate / 1024 for an AAC track.  Zero for video only.
+     *                        "bitRate" should include these tracks' bit rate too.
+     * @param storage         Where the encoded data lives; one of the STORAGE_* constants.
+     * @param backingFile     File to map for STORAGE_MAPPED_FILE; ignored otherwise.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int extraPacketRate,
+            int desiredSpanSec, int storage, File backingFile) throws IOException {
+        final int packetRate = frameRate + extraPacketRate;
+        if (storage == STORAGE_SLABS) {
+            // One second of data per slab, so a sync frame always fits.  Allow the encoder
+            // to overshoot the requested rate by 2x before we start losing span.
+            initMetaData(packetRate, desiredSpanSec);
+            initSlabs(bitRate, desiredSpanSec,
+                    new SlabPool(bitRate / 8, desiredSpanSec * 2 + 1));
+            return;
+        }
+
+        int dataBufferSize = computeDataSize(bitRate, desiredSpanSec);
+        mDataLength = dataBufferSize;
+        switch (storage) {
+            case STORAGE_HEAP:
+                initHeap(dataBufferSize);
+                break;
+            case STORAGE_DIRECT:
+                // The mirror only needs to be as large as the biggest packet we expect.  One
+                // second of data comfortably holds a sync frame; anything larger falls back
+                // to the copy in getChunk().
+                mMirrorLength = Math.min(bitRate / 8, dataBufferSize);
+                mDataBufferWrapper = ByteBuffer.allocateDirect(dataBufferSize + mMirrorLength);
+                break;
+            case STORAGE_MAPPED_FILE:
+                mMirrorLength = Math.min(bitRate / 8, dataBufferSize);
+                mDataBufferWrapper = mapFile(backingFile, dataBufferSize + mMirrorLength);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown storage " + storage);
+        }
+
+        initMetaData(packetRate, desiredSpanSec);
+
+        if (VERBOSE) {
+            Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
+                    " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
+                    " mirror=" + mMirrorLength + " metaBufferCount=" + mPacketStart.length);
+        }
+    }
+
+    /**
+     * Returns the size of the encoded data ring.
+     */
+    private static int computeDataSize(int bitRate, int desiredSpanSec) {
         // For the encoded data, we assume the encoded bit rate is close to what we request.
         //
         // There would be a minor performance advantage to using a power of two here, because
         // not all ARM CPUs support integer modulus.
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
+        //
+        // Multi-minute spans at high bit rates don't fit in an int, so do the math in long.
+        long requestedSize = (long) bitRate * desiredSpanSec / 8;
+        if (requestedSize + bitRate / 8 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Buffer too large: " + requestedSize);
+        }
+        return (int) requestedSize;
+    }
+
+    /**
+     * Allocates STORAGE_HEAP data storage.
+     */
+    private void initHeap(int dataBufferSize) {
+        mDataLength = dataBufferSize;
         mDataBuffer = new byte[dataBufferSize];
         mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+    }
 
+    /**
+     * Allocates the meta-data arrays, for "packetRate" packets per second across all tracks.
+     */
+    private void initMetaData(int packetRate, int desiredSpanSec) {
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
-        // data storage rather than (inexpensive) metadata storage.
-        int metaBufferCount = frameRate * desiredSpanSec * 2;
+        // data storage rather than (inexpensive) metadata storage -- provided the caller
+        // counted every track's packets, not just the video frames.
+        int metaBufferCount = packetRate * desiredSpanSec * 2;
         mPacketFlags = new int[metaBufferCount];
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mPacketTrack = new int[metaBufferCount];
+        mSyncIndex = new int[metaBufferCount];
+    }
+
+    /**
+     * Prepares slab storage.  We start out expecting the requested bit rate, and adjust
+     * once we've measured the real one.
+     */
+    private void initSlabs(int bitRate, int desiredSpanSec, SlabPool pool) {
+        mSlabPool = pool;
+        mSlabRing = new ByteBuffer[pool.getMaxSlabs() + 1];
+        mPacketSlab = new int[mPacketStart.length];
+        mDesiredSpanUsec = desiredSpanSec * 1000000L;
+        mMeasuredBytesPerSec = bitRate / 8;
+        updateSlabLimit();
 
         if (VERBOSE) {
-            Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
-                    " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
-                    " metaBufferCount=" + metaBufferCount);
+            Log.d(TAG, "CBE: slabs bitRate=" + bitRate + " desiredSpan=" + desiredSpanSec +
+                    ": slabSize=" + pool.getSlabSize() + " limit=" + mSlabLimit + "/" +
+                    pool.getMaxSlabs() + " metaBufferCount=" + mPacketStart.length);
+        }
+    }
+
+    /**
+     * Sets the number of slabs we'll hold, based on the measured bit rate.  If the limit
+     * drops, the extra slabs are returned to the pool as the old data is evicted.
+     */
+    private void updateSlabLimit() {
+        final int slabSize = mSlabPool.getSlabSize();
+        long needed = mMeasuredBytesPerSec * mDesiredSpanUsec / 1000000L;
+        // +1 for the partially-filled head slab, +1 for the partially-evicted tail slab.
+        long slabs = (needed + slabSize - 1) / slabSize + 2;
+        int limit = (int) Math.min(slabs, mSlabPool.getMaxSlabs());
+        if (limit != mSlabLimit) {
+            if (VERBOSE) {
+                Log.d(TAG, "slab limit " + mSlabLimit + " -> " + limit + " (" +
+                        mMeasuredBytesPerSec + " bytes/sec)");
+            }
+            mSlabLimit = limit;
+        }
+    }
+
+    /**
+     * Preallocates the backing file and maps it into memory.
+     * <p>
+     * The mapping stays valid after the channel is closed, and is released when the buffer
+     * is garbage-collected.
+     */
+    private static MappedByteBuffer mapFile(File backingFile, int size) throws IOException {
+        if (backingFile == null) {
+            throw new IllegalArgumentException("STORAGE_MAPPED_FILE requires a backing file");
+        }
+        RandomAccessFile raf = new RandomAccessFile(backingFile, "rw");
+        try {
+            // Setting the length up front means we won't be extending the file (and
+            // allocating disk blocks) from the encoder thread.
+            raf.setLength(size);
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            Log.d(TAG, "mapped " + size + " bytes from " + backingFile);
+            return buf;
+        } finally {
+            raf.close();
         }
     }
 
@@ -105,35 +366,79 @@ public class CircularEncoderBuffer {
         return mPacketPtsUsec[beforeHead] - mPacketPtsUsec[mMetaTail];
     }
 
+    /**
+     * Adds a new encoded data packet for track 0 (video) to the buffer.
+     *
+     * @see #add(int, ByteBuffer, int, long)
+     */
+    public boolean add(ByteBuffer buf, int flags, long ptsUsec) {
+        return add(TRACK_VIDEO, buf, flags, ptsUsec);
+    }
+
     /**
      * Adds a new encoded data packet to the buffer.
      *
+     * @param track   Track index.  Sync frames only start a new GOP on TRACK_VIDEO.
      * @param buf     The data.  Set position() to the start offset and limit() to position+size.
      *                The position and limit may be altered by this method.
      * @param size    Number of bytes in the packet.
      * @param flags   MediaCodec.BufferInfo flags.
      * @param ptsUsec Presentation time stamp, in microseconds.
+     * @return False if the packet was dropped because the space it needed is pinned.
      */
-    public void add(ByteBuffer buf, int flags, long ptsUsec) {
+    public boolean add(int track, ByteBuffer buf, int flags, long ptsUsec) {
         int size = buf.limit() - buf.position();
         if (VERBOSE) {
-            Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
-                    " pts=" + ptsUsec);
+            Log.d(TAG, "add track=" + track + " size=" + size + " flags=0x" +
+                    Integer.toHexString(flags) + " pts=" + ptsUsec);
+        }
+        boolean isSync = track == TRACK_VIDEO &&
+                (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (mDropUntilSync) {
+            if (!isSync) {
+                if (VERBOSE) Log.v(TAG, "dropping packet, waiting for sync frame");
+                return false;
+            }
+            mDropUntilSync = false;
+        }
+        if (isSync && mSyncHead == mSyncTail && mMetaHead != mMetaTail) {
+            // Anything we're holding precedes the first sync frame and can never be saved.
+            if (VERBOSE) Log.v(TAG, "dropping packets that precede first sync frame");
+            setTail(mMetaHead);
+        }
+        if (mSlabPool != null) {
+            measureRate(isSync, size, ptsUsec);
         }
         while (!canAdd(size)) {
-            removeTail();
+            if (!removeTail()) {
+                Log.w(TAG, "HEY: buffer full of pinned data, dropping packet");
+                mDropUntilSync = true;
+                return false;
+            }
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataLength;
         final int metaLen = mPacketStart.length;
-        int packetStart = getHeadStart();
+        int packetStart = (mSlabPool != null) ? mSlabWritePos : getHeadStart();
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
         mPacketStart[mMetaHead] = packetStart;
         mPacketLength[mMetaHead] = size;
+        mPacketTrack[mMetaHead] = track;
 
         // Copy the data in.  Take care if it gets split in half.
-        if (packetStart + size < dataLen) {
+        if (mSlabPool != null) {
+            // canAdd() made sure it fits in the newest slab.
+            int slot = (mSlabHead + mSlabRing.length - 1) % mSlabRing.length;
+            ByteBuffer slab = mSlabRing[slot];
+            slab.limit(packetStart + size);
+            slab.position(packetStart);
+            slab.put(buf);
+            mPacketSlab[mMetaHead] = slot;
+            mSlabWritePos = packetStart + size;
+        } else if (mDataBuffer == null) {
+            putDirect(buf, packetStart, size);
+        } else if (packetStart + size < dataLen) {
             // one chunk
             buf.get(mDataBuffer, packetStart, size);
         } else {
@@ -146,7 +451,14 @@ public class CircularEncoderBuffer {
             buf.get(mDataBuffer, 0, size - firstSize);
         }
 
+        if (isSync) {
+            mSyncIndex[mSyncHead] = mMetaHead;
+            mSyncHead = (mSyncHead + 1) % metaLen;
+        }
         mMetaHead = (mMetaHead + 1) % metaLen;
+        if (mPinFollowsHead && mPinNext >= 0) {
+            mPinEnd = mMetaHead;
+        }
 
         if (EXTRA_DEBUG) {
             // The head packet is the next-available spot.
@@ -155,6 +467,70 @@ public class CircularEncoderBuffer {
             mPacketStart[mMetaHead] = -100000;
             mPacketLength[mMetaHead] = Integer.MAX_VALUE;
         }
+        return true;
+    }
+
+    /**
+     * Updates the measured bit rate.  We measure over whole GOPs, from one sync frame to the
+     * next, since sync frames are much larger than the frames in between.
+     */
+    private void measureRate(boolean isSync, int size, long ptsUsec) {
+        if (isSync) {
+            if (mLastSyncPtsUsec >= 0 && ptsUsec > mLastSyncPtsUsec) {
+                long rate = mBytesSinceSync * 1000000L / (ptsUsec - mLastSyncPtsUsec);
+                // Smooth it out a bit, so one odd GOP doesn't make us thrash.
+                mMeasuredBytesPerSec = (mMeasuredBytesPerSec * 3 + rate) / 4;
+                updateSlabLimit();
+            }
+            mLastSyncPtsUsec = ptsUsec;
+            mBytesSinceSync = 0;
+        }
+        mBytesSinceSync += size;
+    }
+
+    /**
+     * Copies a packet into the direct buffer at the specified offset.  If the packet runs
+     * past the end of the ring, the overflow is written both to the mirror region and to
+     * the start of the ring.
+     */
+    private void putDirect(ByteBuffer buf, int packetStart, int size) {
+        final int dataLen = mDataLength;
+        final ByteBuffer data = mDataBufferWrapper;
+        int srcStart = buf.position();
+        int srcEnd = buf.limit();
+
+        if (packetStart + size < dataLen) {
+            // one chunk
+            data.limit(packetStart + size);
+            data.position(packetStart);
+            data.put(buf);
+            return;
+        }
+
+        int firstSize = dataLen - packetStart;
+        int secondSize = size - firstSize;
+        if (VERBOSE) {
+            Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size);
+        }
+        if (secondSize <= mMirrorLength) {
+            // Whole packet goes in contiguously, spilling into the mirror.
+            data.limit(packetStart + size);
+            data.position(packetStart);
+            data.put(buf);
+        } else {
+            // Too big for the mirror; getChunk() will have to reassemble it.
+            buf.limit(srcStart + firstSize);
+            data.limit(dataLen);
+            data.position(packetStart);
+            data.put(buf);
+        }
+
+        // The wrapped part also occupies the start of the ring.
+        buf.limit(srcEnd);
+        buf.position(srcStart + firstSize);
+        data.limit(secondSize);
+        data.position(0);
+        data.put(buf);
     }
 
     /**
@@ -163,21 +539,11 @@ public class CircularEncoderBuffer {
      * When sending output to a MediaMuxer, start here.
      */
     public int getFirstIndex() {
-        final int metaLen = mPacketStart.length;
-
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                break;
-            }
-            index = (index + 1) % metaLen;
-        }
-
-        if (index == mMetaHead) {
+        if (mSyncHead == mSyncTail) {
             Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+            return -1;
         }
-        return index;
+        return mSyncIndex[mSyncTail];
     }
 
     /**
@@ -192,15 +558,169 @@ public class CircularEncoderBuffer {
         return next;
     }
 
+    /**
+     * Returns the presentation time stamp of the most recently added packet, or -1 if the
+     * buffer is empty.
+     */
+    public long getLastPtsUsec() {
+        if (mMetaHead == mMetaTail) {
+            return -1;
+        }
+        final int metaLen = mPacketStart.length;
+        return mPacketPtsUsec[(mMetaHead + metaLen - 1) % metaLen];
+    }
+
+    /**
+     * Returns the index of the newest sync frame whose presentation time is at or before
+     * "ptsUsec".  If every sync frame is later than that, returns the oldest one.  Returns
+     * -1 if there are no sync frames.
+     */
+    public int getSyncIndexBefore(long ptsUsec) {
+        final int metaLen = mPacketStart.length;
+        int count = (mSyncHead - mSyncTail + metaLen) % metaLen;
+        if (count == 0) {
+            return -1;
+        }
+
+        // Sync frames are in PTS order; find the last one <= ptsUsec.
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            int index = mSyncIndex[(mSyncTail + mid) % metaLen];
+            if (mPacketPtsUsec[index] <= ptsUsec) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return mSyncIndex[(mSyncTail + lo) % metaLen];
+    }
+
+    /**
+     * Returns the index of the newest packet whose presentation time is at or before
+     * "ptsUsec", or -1 if every buffered packet is later than that.
+     * <p>
+     * This relies on the packets being in PTS order, which is true for the encoders we
+     * use (no B-frames).  With interleaved tracks the order is only approximate, so the
+     * result may be off by a packet or two of another track.
+     */
+    public int getIndexBefore(long ptsUsec) {
+        final int metaLen = mPacketStart.length;
+        int count = (mMetaHead - mMetaTail + metaLen) % metaLen;
+        if (count == 0 || mPacketPtsUsec[mMetaTail] > ptsUsec) {
+            return -1;
+        }
+
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mPacketPtsUsec[(mMetaTail + mid) % metaLen] <= ptsUsec) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return (mMetaTail + lo) % metaLen;
+    }
+
+    /**
+     * Returns the track index of a packet.
+     */
+    public int getTrack(int index) {
+        return mPacketTrack[index];
+    }
+
+    /**
+     * Returns the presentation time stamp of a packet.
+     */
+    public long getPtsUsec(int index) {
+        return mPacketPtsUsec[index];
+    }
+
+    /**
+     * Returns the number of packets from "fromIndex" to "toIndex".  Both indices must be
+     * valid, with "fromIndex" the older of the two.
+     */
+    public int getDistance(int fromIndex, int toIndex) {
+        final int metaLen = mPacketStart.length;
+        return (toIndex - fromIndex + metaLen) % metaLen;
+    }
+
+    /**
+     * Pins everything from the oldest sync frame to the most recent packet, so it can be
+     * read from another thread.  Packets added later are not part of the range.
+     *
+     * @return The index of the first pinned packet, or -1 if there is nothing to save.
+     */
+    public int pin() {
+        int index = getFirstIndex();
+        if (index < 0) {
+            return -1;
+        }
+        pin(index, false);
+        return index;
+    }
+
+    /**
+     * Pins everything from "index" to the most recent packet, so it can be read from
+     * another thread.
+     *
+     * @param index       Index of the first packet to pin; should be a sync frame.
+     * @param followsHead If set, packets added later are pinned as well, until the reader
+     *                    releases the pin.
+     */
+    public void pin(int index, boolean followsHead) {
+        if (mPinNext >= 0) {
+            throw new RuntimeException("already pinned");
+        }
+        mPinFollowsHead = followsHead;
+        mPinEnd = mMetaHead;
+        mPinNext = index;
+    }
+
+    /**
+     * Returns true if a range is pinned.
+     */
+    public boolean isPinned() {
+        return mPinNext >= 0;
+    }
+
+    /**
+     * Returns the index of the next pinned packet, or -1 if we've reached the end of the
+     * pinned range.  If the pin follows the head, -1 just means the next packet hasn't
+     * been added yet.  May be called from the reader thread.
+     */
+    public int getNextPinnedIndex(int index) {
+        int next = (index + 1) % mPacketStart.length;
+        if (next == mPinEnd) {
+            next = -1;
+        }
+        return next;
+    }
+
+    /**
+     * Tells the buffer the reader is done with everything before "index", allowing that
+     * data to be evicted.  Pass -1 to release the pin entirely.  May be called from the
+     * reader thread.
+     */
+    public void advancePin(int index) {
+        mPinNext = index;
+    }
+
     /**
      * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
      * BufferInfo.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
      * the position and limit is allowed.
+     * <p>
+     * With STORAGE_DIRECT or STORAGE_MAPPED_FILE, the returned buffer is always the ring
+     * itself, so this does not allocate unless a packet was too large for the mirror region.
      */
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataLength;
         int packetStart = mPacketStart[index];
         int length = mPacketLength[index];
 
@@ -209,15 +729,30 @@ public class CircularEncoderBuffer {
         info.presentationTimeUs = mPacketPtsUsec[index];
         info.size = length;
 
-        if (packetStart + length <= dataLen) {
-            // one chunk; return full buffer to avoid copying data
+        if (mSlabPool != null) {
+            // never split
+            return mSlabRing[mPacketSlab[index]];
+        } else if (packetStart + length <= dataLen + mMirrorLength) {
+            // one chunk (possibly extending into the mirror); return full buffer to avoid
+            // copying data
             return mDataBufferWrapper;
         } else {
             // two chunks
             ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
             int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            if (mDataBuffer != null) {
+                tempBuf.put(mDataBuffer, packetStart, firstSize);
+                tempBuf.put(mDataBuffer, 0, length - firstSize);
+            } else {
+                // May be on the reader thread, so don't touch the shared position/limit.
+                ByteBuffer data = mDataBufferWrapper.duplicate();
+                data.limit(dataLen);
+                data.position(packetStart);
+                tempBuf.put(data);
+                data.limit(length - firstSize);
+                data.position(0);
+                tempBuf.put(data);
+            }
             info.offset = 0;
             return tempBuf;
         }
@@ -234,7 +769,7 @@ public class CircularEncoderBuffer {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataLength;
         final int metaLen = mPacketStart.length;
 
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
@@ -248,7 +783,10 @@ public class CircularEncoderBuffer {
      * @return True if there is enough space to add without removing anything.
      */
     private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
+        if (mSlabPool != null) {
+            return canAddToSlab(size);
+        }
+        final int dataLen = mDataLength;
         final int metaLen = mPacketStart.length;
 
         if (size > dataLen) {
@@ -291,13 +829,108 @@ public class CircularEncoderBuffer {
     }
 
     /**
-     * Removes the tail packet.
+     * Slab-storage version of canAdd().  If the newest slab is full, this borrows another
+     * one, provided we're under the limit.
      */
-    private void removeTail() {
+    private boolean canAddToSlab(int size) {
+        final int metaLen = mPacketStart.length;
+        final int slabSize = mSlabPool.getSlabSize();
+        final int ringLen = mSlabRing.length;
+
+        if (size > slabSize) {
+            throw new RuntimeException("Enormous packet: " + size + " vs. slab " + slabSize);
+        }
+        if (mMetaHead != mMetaTail && (mMetaHead + 1) % metaLen == mMetaTail) {
+            if (VERBOSE) {
+                Log.v(TAG, "ran out of metadata (head=" + mMetaHead + " tail=" + mMetaTail + ")");
+            }
+            return false;
+        }
+        if (mSlabHead != mSlabTail && mSlabWritePos + size <= slabSize) {
+            return true;
+        }
+
+        int inUse = (mSlabHead - mSlabTail + ringLen) % ringLen;
+        if (inUse >= mSlabLimit && mMetaHead != mMetaTail) {
+            if (VERBOSE) Log.v(TAG, "at slab limit (" + inUse + ")");
+            return false;
+        }
+        ByteBuffer slab = mSlabPool.borrow();
+        if (slab == null) {
+            if (mMetaHead == mMetaTail) {
+                throw new RuntimeException("No slabs available");
+            }
+            if (VERBOSE) Log.v(TAG, "slab pool is empty");
+            return false;
+        }
+        mSlabRing[mSlabHead] = slab;
+        mSlabHead = (mSlabHead + 1) % ringLen;
+        mSlabWritePos = 0;
+        return true;
+    }
+
+    /**
+     * Moves the tail to "newTail".  With slab storage, slabs that no longer hold any
+     * packets are returned to the pool.
+     */
+    private void setTail(int newTail) {
+        mMetaTail = newTail;
+        if (mSlabPool == null) {
+            return;
+        }
+
+        final int ringLen = mSlabRing.length;
+        int keepSlot;
+        if (newTail == mMetaHead) {
+            // Empty; hang on to the newest slab so we don't bounce it off the pool.
+            keepSlot = (mSlabHead + ringLen - 1) % ringLen;
+        } else {
+            keepSlot = mPacketSlab[newTail];
+        }
+        while (mSlabTail != keepSlot && mSlabTail != mSlabHead) {
+            mSlabPool.giveBack(mSlabRing[mSlabTail]);
+            mSlabRing[mSlabTail] = null;
+            mSlabTail = (mSlabTail + 1) % ringLen;
+        }
+    }
+
+    /**
+     * Removes the oldest GOP, i.e. everything from the tail up to the next sync frame.
+     * <p>
+     * If the buffer doesn't hold a second sync frame, the remaining packets all depend on
+     * the one we're about to drop, so we discard everything.  That only happens if the
+     * buffer is too small to hold two GOPs.
+     *
+     * @return False if the oldest GOP is pinned and could not be removed.
+     */
+    private boolean removeTail() {
         if (mMetaHead == mMetaTail) {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
         final int metaLen = mPacketStart.length;
-        mMetaTail = (mMetaTail + 1) % metaLen;
+
+        int syncTail = mSyncTail;
+        if (mSyncHead != syncTail && mSyncIndex[syncTail] == mMetaTail) {
+            // Tail is a sync frame; the GOP ends at the next one.
+            syncTail = (syncTail + 1) % metaLen;
+        }
+        int newTail = (mSyncHead != syncTail) ? mSyncIndex[syncTail] : mMetaHead;
+
+        int pinNext = mPinNext;
+        if (pinNext >= 0) {
+            // The GOP can go if the reader is done with all of it.
+            int pinDist = (pinNext - mMetaTail + metaLen) % metaLen;
+            int newTailDist = (newTail - mMetaTail + metaLen) % metaLen;
+            if (newTailDist > pinDist) {
+                return false;
+            }
+        }
+
+        if (newTail == mMetaHead) {
+            Log.w(TAG, "HEY: buffer can't hold a full GOP, discarding all data");
+        }
+        mSyncTail = syncTail;
+        setTail(newTail);
+        return true;
     }
 }
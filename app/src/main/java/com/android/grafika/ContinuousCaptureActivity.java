@@ -63,6 +63,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     private static final int VIDEO_WIDTH = 1280;  // dimensions for 720p video
     private static final int VIDEO_HEIGHT = 720;
     private static final int DESIRED_PREVIEW_FPS = 15;
+    private static final long JOURNAL_SIZE = 32 * 1024 * 1024;  // ~40 sec at 6Mbps
 
     private EglCore mEglCore;
     private WindowSurface mDisplaySurface;
@@ -76,6 +77,8 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     private int mCameraPreviewThousandFps;
 
     private File mOutputFile;
+    private File mRingFile;     // backing store for the encoder's circular buffer
+    private File mJournalFile;  // crash-durable copy of the encoder output
     private CircularEncoder mCircEncoder;
     private WindowSurface mEncoderSurface;
     private boolean mFileSaveInProgress;
@@ -94,6 +97,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         public static final int MSG_FRAME_AVAILABLE = 1;
         public static final int MSG_FILE_SAVE_COMPLETE = 2;
         public static final int MSG_BUFFER_STATUS = 3;
+        public static final int MSG_RECOVERY_COMPLETE = 4;
 
         private WeakReference<ContinuousCaptureActivity> mWeakActivity;
 
@@ -101,7 +105,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
             mWeakActivity = new WeakReference<ContinuousCaptureActivity>(activity);
         }
 
-        // CircularEncoder.Callback, called on encoder thread
+        // CircularEncoder.Callback, called on encoder or muxer thread
         @Override
         public void fileSaveComplete(int status) {
             sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, null));
@@ -149,6 +153,10 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
                     activity.fileSaveComplete(msg.arg1);
                     break;
                 }
+                case MSG_RECOVERY_COMPLETE: {
+                    activity.recoveryComplete(msg.arg1);
+                    break;
+                }
                 case MSG_BUFFER_STATUS: {
                     long duration = (((long) msg.arg1) << 32) |
                             (((long) msg.arg2) & 0xffffffffL);
@@ -174,6 +182,9 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         mHandler.sendEmptyMessageDelayed(MainHandler.MSG_BLINK_TEXT, 1500);
 
         mOutputFile = new File(getFilesDir(), "continuous-capture.mp4");
+        mRingFile = new File(getFilesDir(), "continuous-capture.ring");
+        mJournalFile = new File(getFilesDir(), "continuous-capture.journal");
+        recoverJournal();
         mSecondsOfVideo = 0.0f;
         updateControls();
     }
@@ -336,11 +347,11 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         tv.setText(str);
 
 
-        mCircEncoder.saveVideo(mOutputFile);
+        mCircEncoder.saveVideoInBackground(mOutputFile);
     }
 
     /**
-     * The file save has completed.  We can resume recording.
+     * The file save has completed.
      */
     private void fileSaveComplete(int status) {
         Log.d(TAG, "fileSaveComplete " + status);
@@ -362,6 +373,52 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         toast.show();
     }
 
+    /**
+     * If the last session died without closing its journal, recover what we can into
+     * a separate file.
+     * <p>
+     * The journal is renamed first, so the encoder can start a new one right away, and
+     * the recovery runs on a background thread.
+     */
+    private void recoverJournal() {
+        if (!EncoderJournal.needsRecovery(mJournalFile)) {
+            return;
+        }
+        final File crashed = new File(getFilesDir(), "continuous-capture.journal.crashed");
+        final File output = new File(getFilesDir(), "continuous-capture-recovered.mp4");
+        if (!mJournalFile.renameTo(crashed)) {
+            Log.w(TAG, "Unable to rename " + mJournalFile);
+            return;
+        }
+        Log.i(TAG, "Recovering video from crashed session");
+
+        new Thread("journal recovery") {
+            @Override
+            public void run() {
+                int count = 0;
+                try {
+                    count = EncoderJournal.recover(crashed, output);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "journal recovery failed", ioe);
+                }
+                crashed.delete();
+                mHandler.sendMessage(mHandler.obtainMessage(
+                        MainHandler.MSG_RECOVERY_COMPLETE, count, 0));
+            }
+        }.start();
+    }
+
+    /**
+     * Journal recovery has finished.
+     */
+    private void recoveryComplete(int frameCount) {
+        Log.d(TAG, "recoveryComplete " + frameCount);
+        if (frameCount > 0) {
+            String str = getString(R.string.recoverySucceeded, frameCount);
+            Toast.makeText(this, str, Toast.LENGTH_LONG).show();
+        }
+    }
+
     /**
      * Updates the buffer status UI.
      */
@@ -411,7 +468,9 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         //       (can we guarantee that camera preview size is compatible with AVC video encoder?)
         try {
             mCircEncoder = new CircularEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, 6000000,
-                    mCameraPreviewThousandFps / 1000, 7, mHandler);
+                    mCameraPreviewThousandFps / 1000, 7,
+                    CircularEncoderBuffer.STORAGE_MAPPED_FILE, mRingFile, mHandler);
+            mCircEncoder.enableJournal(mJournalFile, JOURNAL_SIZE);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -482,16 +541,15 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         drawExtra(mFrameNum, viewWidth, viewHeight);
         mDisplaySurface.swapBuffers();
 
-        // Send it to the video encoder.
-        if (!mFileSaveInProgress) {
-            mEncoderSurface.makeCurrent();
-            GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
-            drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mCircEncoder.frameAvailableSoon();
-            mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
-            mEncoderSurface.swapBuffers();
-        }
+        // Send it to the video encoder.  The file save runs on its own thread, so we
+        // keep recording while it's in progress.
+        mEncoderSurface.makeCurrent();
+        GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
+        drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mCircEncoder.frameAvailableSoon();
+        mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
+        mEncoderSurface.swapBuffers();
 
         mFrameNum++;
     }
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.graphics.ImageFormat;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Keeps recently-used video decoders around, so a new player doesn't have to pay for
+ * creating one.
+ * <p>
+ * Idle decoders are keyed by MIME type and the resolution they were last configured for.
+ * {@link #acquire} picks an idle decoder with the right MIME type that's at least as large
+ * as the requested format, and gets it ready in the cheapest way available:
+ * <ul>
+ * <li>Same format, API 23+: the decoder was flushed but never stopped, so we just point it
+ *     at the new Surface with setOutputSurface().  No codec startup at all.
+ * <li>Different format, API 21+: reset() and reconfigure.  Skips allocating the codec
+ *     component, which is the expensive part of createDecoderByType().
+ * <li>Otherwise, a new decoder is created.
+ * </ul>
+ * While a decoder is idle on API 23+, its output is redirected to a private ImageReader
+ * Surface.  Otherwise it would stay connected to the previous player's Surface, and nobody
+ * else (including the next decoder) could connect to it.
+ * <p>
+ * Decoders are handed out started, in synchronous mode, and must be given back with
+ * {@link #recycle} rather than released.  Idle decoders tie up hardware resources, so
+ * call {@link #clear()} when playback is done for a while.
+ * <p>
+ * Thread-safe.
+ */
+public class DecoderPool {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int DEFAULT_MAX_IDLE = 2;
+
+    private static final DecoderPool sInstance = new DecoderPool(DEFAULT_MAX_IDLE);
+
+    private final int mMaxIdle;
+    private final ArrayList<Entry> mIdle = new ArrayList<Entry>();     // oldest first
+    private final IdentityHashMap<MediaCodec, Entry> mInUse =
+            new IdentityHashMap<MediaCodec, Entry>();
+
+    // Stats.
+    private int mHitCount;
+    private int mResetCount;
+    private int mMissCount;
+
+    /**
+     * A decoder, and what it was last configured with.
+     */
+    private static class Entry {
+        MediaCodec codec;
+        MediaFormat format;
+        String mime;
+        int width;
+        int height;
+        ImageReader parking;        // idle output, API 23+
+    }
+
+    /**
+     * Returns the process-wide pool.
+     */
+    public static DecoderPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Creates a pool that holds up to "maxIdle" idle decoders.
+     */
+    public DecoderPool(int maxIdle) {
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * Returns a started decoder, configured for the specified format and output Surface.
+     */
+    public MediaCodec acquire(MediaFormat format, Surface surface) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+
+        Entry entry = null;
+        synchronized (this) {
+            // Prefer an exact format match; otherwise take the oldest that's big enough.
+            for (int i = 0; i < mIdle.size(); i++) {
+                Entry idle = mIdle.get(i);
+                if (!idle.mime.equals(mime) || idle.width < width || idle.height < height) {
+                    continue;
+                }
+                if (entry == null || (!sameFormat(entry.format, format) &&
+                        sameFormat(idle.format, format))) {
+                    entry = idle;
+                }
+            }
+            if (entry != null) {
+                mIdle.remove(entry);
+            }
+        }
+
+        boolean reused = false;
+        if (entry != null) {
+            try {
+                reused = reuse(entry, format, surface);
+            } catch (IllegalStateException ise) {
+                // Codec is in a bad way.  Get rid of it and start fresh.
+                Log.w(TAG, "HEY: unable to reuse pooled decoder", ise);
+                releaseEntry(entry);
+            }
+        }
+        if (!reused) {
+            entry = new Entry();
+            entry.codec = MediaCodec.createDecoderByType(mime);
+            entry.mime = mime;
+            entry.codec.configure(format, surface, null, 0);
+            entry.codec.start();
+            synchronized (this) {
+                mMissCount++;
+            }
+        }
+        entry.format = format;
+        entry.width = width;
+        entry.height = height;
+
+        synchronized (this) {
+            mInUse.put(entry.codec, entry);
+            if (VERBOSE) Log.d(TAG, "DecoderPool acquire: " + getStats());
+        }
+        return entry.codec;
+    }
+
+    /**
+     * Prepares an idle decoder for a new format and Surface.
+     *
+     * @return false if the decoder couldn't be reused, and has been released.
+     */
+    private boolean reuse(Entry entry, MediaFormat format, Surface surface) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && entry.parking != null &&
+                sameFormat(entry.format, format)) {
+            // Flushed and running; just needs somewhere to send output.  Decoders are only
+            // parked on M+, but setOutputSurface() is API 23, so check anyway.
+            entry.codec.setOutputSurface(surface);
+            entry.parking.close();
+            entry.parking = null;
+            synchronized (this) {
+                mHitCount++;
+            }
+            return true;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            entry.codec.reset();
+            if (entry.parking != null) {
+                entry.parking.close();
+                entry.parking = null;
+            }
+            entry.codec.configure(format, surface, null, 0);
+            entry.codec.start();
+            synchronized (this) {
+                mResetCount++;
+            }
+            return true;
+        } else {
+            releaseEntry(entry);
+            return false;
+        }
+    }
+
+    /**
+     * Takes back a decoder handed out by {@link #acquire}.  The caller must not use it
+     * afterward.
+     */
+    public void recycle(MediaCodec codec) {
+        Entry entry;
+        synchronized (this) {
+            entry = mInUse.remove(codec);
+        }
+        if (entry == null) {
+            throw new RuntimeException("decoder " + codec + " is not from this pool");
+        }
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                // Keep it running, but let go of the caller's Surface.
+                codec.flush();
+                entry.parking = ImageReader.newInstance(entry.width, entry.height,
+                        ImageFormat.PRIVATE, 2);
+                codec.setOutputSurface(entry.parking.getSurface());
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // Stopping disconnects from the Surface; we'll reset it later.
+                codec.stop();
+            } else {
+                // Can't reconfigure a codec without reset(), so there's nothing to keep.
+                releaseEntry(entry);
+                return;
+            }
+        } catch (IllegalStateException ise) {
+            Log.w(TAG, "HEY: unable to recycle decoder", ise);
+            releaseEntry(entry);
+            return;
+        }
+
+        Entry evicted = null;
+        synchronized (this) {
+            mIdle.add(entry);
+            if (mIdle.size() > mMaxIdle) {
+                evicted = mIdle.remove(0);
+            }
+        }
+        if (evicted != null) {
+            releaseEntry(evicted);
+        }
+    }
+
+    /**
+     * Releases all idle decoders.  Decoders that are in use are not affected.
+     */
+    public void clear() {
+        ArrayList<Entry> idle;
+        synchronized (this) {
+            idle = new ArrayList<Entry>(mIdle);
+            mIdle.clear();
+            Log.d(TAG, "DecoderPool clear: " + getStats());
+        }
+        for (Entry entry : idle) {
+            releaseEntry(entry);
+        }
+    }
+
+    /**
+     * Returns a short summary of the pool's hit rate, for logging.
+     */
+    public synchronized String getStats() {
+        return "hits=" + mHitCount + " resets=" + mResetCount + " misses=" + mMissCount +
+                " idle=" + mIdle.size() + " inUse=" + mInUse.size();
+    }
+
+    private static void releaseEntry(Entry entry) {
+        try {
+            entry.codec.release();
+        } finally {
+            if (entry.parking != null) {
+                entry.parking.close();
+                entry.parking = null;
+            }
+        }
+    }
+
+    /**
+     * Returns true if a decoder configured with format "a" can decode a stream with
+     * format "b" without reconfiguring.
+     */
+    static boolean sameFormat(MediaFormat a, MediaFormat b) {
+        return a.getString(MediaFormat.KEY_MIME).equals(b.getString(MediaFormat.KEY_MIME)) &&
+                a.getInteger(MediaFormat.KEY_WIDTH) == b.getInteger(MediaFormat.KEY_WIDTH) &&
+                a.getInteger(MediaFormat.KEY_HEIGHT) == b.getInteger(MediaFormat.KEY_HEIGHT) &&
+                sameBuffer(a, b, "csd-0") && sameBuffer(a, b, "csd-1");
+    }
+
+    private static boolean sameBuffer(MediaFormat a, MediaFormat b, String key) {
+        ByteBuffer bufA = a.containsKey(key) ? a.getByteBuffer(key) : null;
+        ByteBuffer bufB = b.containsKey(key) ? b.getByteBuffer(key) : null;
+        if (bufA == null || bufB == null) {
+            return bufA == bufB;
+        }
+        return bufA.equals(bufB);
+    }
+}
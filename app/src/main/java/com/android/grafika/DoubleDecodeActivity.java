@@ -24,11 +24,14 @@ import android.view.Surface;
 import android.view.TextureView;
 
 import java.io.File;
-import java.io.IOException;
 
 /**
  * Decodes two video streams simultaneously to two TextureViews.
  * <p>
+ * The streams are played by a MultiMoviePlayer, so they run off a single clock and stay
+ * frame-aligned.  Playback starts once both TextureViews have their SurfaceTextures.  When
+ * it stops, the per-stream lateness statistics are logged.
+ * <p>
  * One key feature is that the video decoders do not stop when the activity is restarted due
  * to an orientation change.  This is to simulate playback of a real-time video stream.  If
  * the Activity is pausing because it's "finished" (indicating that we're leaving the Activity
@@ -44,6 +47,7 @@ public class DoubleDecodeActivity extends Activity {
     // Must be static storage so they'll survive Activity restart.
     private static boolean sVideoRunning = false;
     private static VideoBlob[] sBlob = new VideoBlob[VIDEO_COUNT];
+    private static MultiMoviePlayer sPlayer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -68,6 +72,14 @@ public class DoubleDecodeActivity extends Activity {
 
         boolean finishing = isFinishing();
         Log.d(TAG, "isFinishing: " + finishing);
+        if (finishing && sPlayer != null) {
+            // Wait for the playback threads, so we don't kill the Surfaces before the video
+            // stops, and so the stats include the last frames.
+            sPlayer.requestStop();
+            sPlayer.waitForStop();
+            sPlayer.logStats();
+            sPlayer = null;
+        }
         for (int i = 0; i < VIDEO_COUNT; i++) {
             if (finishing) {
                 sBlob[i].stopPlayback();
@@ -79,10 +91,33 @@ public class DoubleDecodeActivity extends Activity {
     }
 
 
+    /**
+     * Starts playback if every blob has its SurfaceTexture.
+     */
+    private static void startPlaybackIfReady() {
+        if (sPlayer != null) {
+            return;
+        }
+        File[] files = new File[VIDEO_COUNT];
+        Surface[] surfaces = new Surface[VIDEO_COUNT];
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            if (sBlob[i] == null || sBlob[i].mSavedSurfaceTexture == null) {
+                return;
+            }
+            files[i] = ContentManager.getInstance().getPath(sBlob[i].mMovieTag);
+        }
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            surfaces[i] = new Surface(sBlob[i].mSavedSurfaceTexture);
+        }
+        sPlayer = new MultiMoviePlayer(files, surfaces);
+        sPlayer.setLoopMode(true);
+        sPlayer.start();
+    }
+
     /**
      * Video playback blob.
      * <p>
-     * Encapsulates the video decoder and playback surface.
+     * Encapsulates the video playback surface.
      * <p>
      * We want to avoid tearing down and recreating the video decoder on orientation changes,
      * because it can be expensive to do so.  That means keeping the decoder's output Surface
@@ -99,8 +134,6 @@ public class DoubleDecodeActivity extends Activity {
         private int mMovieTag;
 
         private SurfaceTexture mSavedSurfaceTexture;
-        private PlayMovieThread mPlayThread;
-        private SpeedControlCallback mCallback;
 
         /**
          * Constructs the VideoBlob.
@@ -114,8 +147,6 @@ public class DoubleDecodeActivity extends Activity {
             Log.d(LTAG, "VideoBlob: tag=" + movieTag + " view=" + view);
             mMovieTag = movieTag;
 
-            mCallback = new SpeedControlCallback();
-
             recreateView(view);
         }
 
@@ -134,13 +165,10 @@ public class DoubleDecodeActivity extends Activity {
         }
 
         /**
-         * Stop playback and shut everything down.
+         * Shut everything down.  Playback must already have been stopped.
          */
         public void stopPlayback() {
             Log.d(LTAG, "stopPlayback");
-            mPlayThread.requestStop();
-            // TODO: wait for the playback thread to stop so we don't kill the Surface
-            //       before the video stops
 
             // We don't need this any more, so null it out.  This also serves as a signal
             // to let onSurfaceTextureDestroyed() know that it can tell TextureView to
@@ -158,9 +186,7 @@ public class DoubleDecodeActivity extends Activity {
 
             if (mSavedSurfaceTexture == null) {
                 mSavedSurfaceTexture = st;
-
-                File sliders = ContentManager.getInstance().getPath(mMovieTag);
-                mPlayThread = new PlayMovieThread(sliders, new Surface(st), mCallback);
+                startPlaybackIfReady();
             } else {
                 // Can't do it here in Android <= 4.4.  The TextureView doesn't add a
                 // listener on the new SurfaceTexture, so it never sees any updates.
@@ -191,53 +217,4 @@ public class DoubleDecodeActivity extends Activity {
             //Log.d(TAG, "onSurfaceTextureUpdated st=" + st);
         }
     }
-
-    /**
-     * Thread object that plays a movie from a file to a surface.
-     * <p>
-     * Currently loops until told to stop.
-     */
-    private static class PlayMovieThread extends Thread {
-        private final File mFile;
-        private final Surface mSurface;
-        private final SpeedControlCallback mCallback;
-        private MoviePlayer mMoviePlayer;
-
-        /**
-         * Creates thread and starts execution.
-         * <p>
-         * The object takes ownership of the Surface, and will access it from the new thread.
-         * When playback completes, the Surface will be released.
-         */
-        public PlayMovieThread(File file, Surface surface, SpeedControlCallback callback) {
-            mFile = file;
-            mSurface = surface;
-            mCallback = callback;
-
-            start();
-        }
-
-        /**
-         * Asks MoviePlayer to halt playback.  Returns without waiting for playback to halt.
-         * <p>
-         * Call from UI thread.
-         */
-        public void requestStop() {
-            mMoviePlayer.requestStop();
-        }
-
-        @Override
-        public void run() {
-            try {
-                mMoviePlayer = new MoviePlayer(mFile, mSurface, mCallback);
-                mMoviePlayer.setLoopMode(true);
-                mMoviePlayer.play();
-            } catch (IOException ioe) {
-                Log.e(TAG, "movie playback failed", ioe);
-            } finally {
-                mSurface.release();
-                Log.d(TAG, "PlayMovieThread stopping");
-            }
-        }
-    }
 }
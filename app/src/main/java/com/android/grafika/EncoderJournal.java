@@ -0,0 +1,472 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Crash-durable copy of the encoder output, kept in a preallocated ring on disk.
+ * <p>
+ * Everything CircularEncoderBuffer holds is lost if the process dies, which is exactly
+ * when we'd like to have it.  The journal gets a copy of every packet, along with its
+ * meta-data, and flushes it to the storage device periodically.  On the next launch,
+ * {@link #recover} rebuilds the packet index from the file and muxes the surviving GOPs
+ * into a .mp4.
+ * <p>
+ * File layout: a fixed-size header holds the video format and a "clean" flag, followed
+ * by records.  Each record is a small header (magic, length, session, sequence number,
+ * PTS, flags), the packet data, and a trailer derived from the sequence number.  When a
+ * record won't fit before the end of the file we go back to the start, overwriting the
+ * oldest records.  Recovery scans the whole file, using the magic and trailer to find
+ * intact records, and the session ID to ignore stale records from earlier runs.
+ * <p>
+ * Forcing data out to flash can stall for a long time, so the periodic force() runs on a
+ * thread of its own rather than holding up the encoder.
+ * <p>
+ * Not thread-safe; the encoder thread owns it.
+ */
+public class EncoderJournal {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int FILE_MAGIC = 0x47524a4c;       // "GRJL"
+    private static final int FILE_VERSION = 1;
+    private static final int RECORD_MAGIC = 0x47524a52;     // "GRJR"
+    private static final int TRAILER_XOR = 0x5a5aa5a5;
+
+    private static final int HEADER_SIZE = 4096;
+    private static final int HEADER_CLEAN_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 36;
+    private static final int RECORD_TRAILER_SIZE = 4;
+    private static final int RECORD_OVERHEAD = RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE;
+
+    // How often we force the data out to the storage device.  More often means less
+    // lost on a crash, but more I/O.
+    private static final long FORCE_INTERVAL_NANOS = 500 * 1000000L;
+
+    private static final int FILL_CHUNK_SIZE = 64 * 1024;
+
+    private static final String MIME_TYPE = "video/avc";
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private long mCapacity;
+    private long mSession;
+    private long mNextSeq;
+    private long mWritePos;
+    private long mLastForceNanos;
+    private boolean mHaveFormat;
+
+    private HandlerThread mSyncThread;
+    private Handler mSyncHandler;
+    private volatile boolean mForcePending;
+    private final Runnable mForceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mChannel.force(false);
+            } catch (IOException ioe) {
+                Log.w(TAG, "journal force failed", ioe);
+            }
+            mForcePending = false;
+        }
+    };
+
+    // Preallocated so appending doesn't allocate.
+    private final ByteBuffer mRecordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    private final ByteBuffer mRecordTrailer = ByteBuffer.allocate(RECORD_TRAILER_SIZE);
+
+    /**
+     * Opens the journal, preallocating the file if necessary.  The file is written out in
+     * full (rather than just extended, which would leave it sparse) so the blocks are
+     * allocated up front instead of while we're recording.
+     * <p>
+     * Any data from a previous session is discarded, so call {@link #recover} first if
+     * {@link #needsRecovery} says so.
+     *
+     * @param journalFile File to hold the journal.
+     * @param size        Size of the file, in bytes.  This determines how much video
+     *                    survives a crash.
+     */
+    public EncoderJournal(File journalFile, long size) throws IOException {
+        if (size < HEADER_SIZE * 2 || size > Integer.MAX_VALUE) {
+            // Recovery maps the whole file, so it has to fit in a MappedByteBuffer.
+            throw new IllegalArgumentException("Bad journal size: " + size);
+        }
+        mFile = new RandomAccessFile(journalFile, "rw");
+        mChannel = mFile.getChannel();
+        mCapacity = size;
+        mSession = System.nanoTime() ^ System.currentTimeMillis();
+        mWritePos = HEADER_SIZE;
+        if (mFile.length() != size) {
+            fill(size);
+        }
+
+        // Nothing worth recovering until we have a format.
+        writeHeader(null, true);
+        mChannel.force(false);
+
+        mSyncThread = new HandlerThread("EncoderJournal");
+        mSyncThread.start();
+        mSyncHandler = new Handler(mSyncThread.getLooper());
+        Log.d(TAG, "journal opened: " + journalFile + " size=" + size);
+    }
+
+    /**
+     * Writes zeroes over the whole file, and sets its length.
+     */
+    private void fill(long size) throws IOException {
+        ByteBuffer zeroes = ByteBuffer.allocate(FILL_CHUNK_SIZE);
+        long pos = 0;
+        while (pos < size) {
+            zeroes.clear();
+            zeroes.limit((int) Math.min(FILL_CHUNK_SIZE, size - pos));
+            pos += writeFully(zeroes, pos);
+        }
+        mFile.setLength(size);
+    }
+
+    /**
+     * Records the encoder's output format.  Must be called before any packets are
+     * appended, i.e. on INFO_OUTPUT_FORMAT_CHANGED.
+     */
+    public void setFormat(MediaFormat format) throws IOException {
+        writeHeader(format, false);
+        requestForce();
+        mHaveFormat = true;
+    }
+
+    /**
+     * Appends a packet to the journal.  The buffer's position and limit are preserved.
+     *
+     * @param buf     The data, from position() to limit().
+     * @param flags   MediaCodec.BufferInfo flags.
+     * @param ptsUsec Presentation time stamp, in microseconds.
+     */
+    public void append(ByteBuffer buf, int flags, long ptsUsec) throws IOException {
+        if (!mHaveFormat) {
+            Log.w(TAG, "journal: dropping packet received before format");
+            return;
+        }
+        final int start = buf.position();
+        final int length = buf.limit() - start;
+        if (length + RECORD_OVERHEAD > mCapacity - HEADER_SIZE) {
+            throw new RuntimeException("Enormous packet: " + length + " vs. journal " +
+                    mCapacity);
+        }
+        if (mWritePos + RECORD_OVERHEAD + length > mCapacity) {
+            // Doesn't fit before the end; start over at the top.  The bytes left at the
+            // end are usually intact records from the previous lap.  We don't need to
+            // mark them: recovery keeps only the newest run of consecutive sequence
+            // numbers, and those older records are on the far side of a gap.
+            mWritePos = HEADER_SIZE;
+        }
+
+        long seq = mNextSeq++;
+        mRecordHeader.clear();
+        mRecordHeader.putInt(RECORD_MAGIC);
+        mRecordHeader.putInt(length);
+        mRecordHeader.putLong(mSession);
+        mRecordHeader.putLong(seq);
+        mRecordHeader.putLong(ptsUsec);
+        mRecordHeader.putInt(flags);
+        mRecordHeader.flip();
+        mRecordTrailer.clear();
+        mRecordTrailer.putInt((int) seq ^ TRAILER_XOR);
+        mRecordTrailer.flip();
+
+        long pos = mWritePos;
+        pos += writeFully(mRecordHeader, pos);
+        pos += writeFully(buf, pos);
+        pos += writeFully(mRecordTrailer, pos);
+        buf.position(start);
+        mWritePos = pos;
+
+        if (VERBOSE) Log.d(TAG, "journal: seq=" + seq + " len=" + length + " pts=" + ptsUsec);
+
+        long now = System.nanoTime();
+        if (now - mLastForceNanos >= FORCE_INTERVAL_NANOS) {
+            requestForce();
+            mLastForceNanos = now;
+        }
+    }
+
+    /**
+     * Asks the sync thread to force the data out, unless it's already working on it.
+     */
+    private void requestForce() {
+        if (!mForcePending) {
+            mForcePending = true;
+            mSyncHandler.post(mForceRunnable);
+        }
+    }
+
+    /**
+     * Flushes and closes the journal, marking it clean so nothing is recovered from it.
+     */
+    public void close() throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        // Let a force() in progress finish, and drop any that are queued; we do our own.
+        mSyncThread.quit();
+        try {
+            mSyncThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "journal sync thread join() was interrupted", ie);
+        }
+        mSyncThread = null;
+        mSyncHandler = null;
+
+        writeClean(mChannel, true);
+        mChannel.force(false);
+        mFile.close();
+        mFile = null;
+        mChannel = null;
+        Log.d(TAG, "journal closed");
+    }
+
+    /**
+     * Writes the file header.  The format is stored as width, height, and the csd-0/csd-1
+     * codec-specific data, which is what MediaMuxer needs.
+     */
+    private void writeHeader(MediaFormat format, boolean clean) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(FILE_MAGIC);
+        header.putInt(FILE_VERSION);
+        header.putInt(clean ? 1 : 0);
+        header.putLong(mSession);
+        if (format != null) {
+            header.putInt(format.getInteger(MediaFormat.KEY_WIDTH));
+            header.putInt(format.getInteger(MediaFormat.KEY_HEIGHT));
+            putCsd(header, format.getByteBuffer("csd-0"));
+            putCsd(header, format.getByteBuffer("csd-1"));
+        }
+        header.flip();
+        writeFully(header, 0);
+    }
+
+    private static void putCsd(ByteBuffer header, ByteBuffer csd) {
+        if (csd == null) {
+            header.putInt(0);
+            return;
+        }
+        csd = csd.duplicate();
+        csd.rewind();
+        if (csd.remaining() > header.remaining() - 4) {
+            throw new RuntimeException("codec-specific data too large: " + csd.remaining());
+        }
+        header.putInt(csd.remaining());
+        header.put(csd);
+    }
+
+    private static void writeClean(FileChannel channel, boolean clean) throws IOException {
+        ByteBuffer flag = ByteBuffer.allocate(4);
+        flag.putInt(clean ? 1 : 0);
+        flag.flip();
+        while (flag.hasRemaining()) {
+            channel.write(flag, HEADER_CLEAN_OFFSET + flag.position());
+        }
+    }
+
+    /**
+     * Writes all of "buf" at "pos".  Returns the number of bytes written.
+     */
+    private int writeFully(ByteBuffer buf, long pos) throws IOException {
+        int count = 0;
+        while (buf.hasRemaining()) {
+            count += mChannel.write(buf, pos + count);
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if the journal file exists and was not closed cleanly.
+     */
+    public static boolean needsRecovery(File journalFile) {
+        if (!journalFile.exists() || journalFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "r");
+            try {
+                return raf.readInt() == FILE_MAGIC && raf.readInt() == FILE_VERSION &&
+                        raf.readInt() == 0;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to read journal header", ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Recovers video from a journal that wasn't closed cleanly.
+     * <p>
+     * We scan the whole file for intact records from the last session, sort them by
+     * sequence number, and keep the newest run without gaps.  That's written to the
+     * output file starting from its first sync frame.  The journal is marked clean
+     * afterward, so we don't recover the same data twice.
+     *
+     * @return The number of packets written to the output file.
+     */
+    public static int recover(File journalFile, File outputFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            int written = recover(map, outputFile);
+            writeClean(channel, true);
+            channel.force(false);
+            return written;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int recover(ByteBuffer map, File outputFile) throws IOException {
+        final int capacity = map.capacity();
+        if (map.getInt(0) != FILE_MAGIC || map.getInt(4) != FILE_VERSION) {
+            Log.w(TAG, "journal: bad header");
+            return 0;
+        }
+        long session = map.getLong(12);
+        int width = map.getInt(20);
+        int height = map.getInt(24);
+        int csd0Len = map.getInt(28);
+        int csd1Pos = 32 + csd0Len;
+        if (width <= 0 || height <= 0 || csd0Len < 0 || csd1Pos + 4 > HEADER_SIZE) {
+            Log.w(TAG, "journal: no usable format");
+            return 0;
+        }
+        int csd1Len = map.getInt(csd1Pos);
+        if (csd1Len < 0 || csd1Pos + 4 + csd1Len > HEADER_SIZE) {
+            Log.w(TAG, "journal: no usable format");
+            return 0;
+        }
+
+        // Rebuild the packet index.  A record is accepted only if the magic, session and
+        // trailer all match; anything else is skipped a byte at a time until we find the
+        // next record.
+        int count = 0;
+        long[] seqs = new long[1024];
+        int[] offsets = new int[1024];
+        int pos = HEADER_SIZE;
+        while (pos + RECORD_OVERHEAD <= capacity) {
+            int length = map.getInt(pos + 4);
+            if (map.getInt(pos) != RECORD_MAGIC || map.getLong(pos + 8) != session ||
+                    length < 0 || length > capacity - pos - RECORD_OVERHEAD) {
+                pos++;
+                continue;
+            }
+            long seq = map.getLong(pos + 16);
+            if (map.getInt(pos + RECORD_HEADER_SIZE + length) != ((int) seq ^ TRAILER_XOR)) {
+                pos++;
+                continue;
+            }
+            if (count == seqs.length) {
+                seqs = Arrays.copyOf(seqs, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            seqs[count] = seq;
+            offsets[count] = pos;
+            count++;
+            pos += RECORD_OVERHEAD + length;
+        }
+        Log.d(TAG, "journal: found " + count + " records");
+        if (count == 0) {
+            return 0;
+        }
+
+        // Sort by sequence number.  Pack (seq, record number) into the sort key so we can
+        // use a primitive sort; sequence numbers won't get anywhere near 2^40.
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = (seqs[i] << 24) | i;
+        }
+        Arrays.sort(keys);
+
+        // Keep the newest gap-free run, starting at its first sync frame.
+        int runStart = count - 1;
+        while (runStart > 0 && (keys[runStart - 1] >> 24) == (keys[runStart] >> 24) - 1) {
+            runStart--;
+        }
+        int first = runStart;
+        while (first < count && (map.getInt(offsets[(int) (keys[first] & 0xffffff)] + 32) &
+                MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+            first++;
+        }
+        if (first == count) {
+            Log.w(TAG, "journal: no sync frame in surviving data");
+            return 0;
+        }
+
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        format.setByteBuffer("csd-0", copyRange(map, 32, csd0Len));
+        if (csd1Len > 0) {
+            format.setByteBuffer("csd-1", copyRange(map, csd1Pos + 4, csd1Len));
+        }
+
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaMuxer muxer = new MediaMuxer(outputFile.getPath(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        int written = 0;
+        try {
+            int track = muxer.addTrack(format);
+            muxer.start();
+            for (int i = first; i < count; i++) {
+                int offset = offsets[(int) (keys[i] & 0xffffff)];
+                info.offset = offset + RECORD_HEADER_SIZE;
+                info.size = map.getInt(offset + 4);
+                info.presentationTimeUs = map.getLong(offset + 24);
+                info.flags = map.getInt(offset + 32);
+                muxer.writeSampleData(track, map, info);
+                written++;
+            }
+        } finally {
+            muxer.stop();
+            muxer.release();
+        }
+        Log.d(TAG, "journal: recovered " + written + " packets to " + outputFile);
+        return written;
+    }
+
+    private static ByteBuffer copyRange(ByteBuffer src, int start, int length) {
+        ByteBuffer dup = src.duplicate();
+        dup.limit(start + length);
+        dup.position(start);
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        copy.put(dup);
+        copy.flip();
+        return copy;
+    }
+}
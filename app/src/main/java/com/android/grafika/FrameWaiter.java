@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.util.Log;
+
+/**
+ * Waits until a deadline more precisely than Thread.sleep() alone.
+ * <p>
+ * How late sleep() wakes up varies widely from one device to another, and with load.  So
+ * we sleep until a safety margin before the deadline, then spin (yielding the CPU each
+ * time around) for the rest.  The margin is learned: every sleep's overshoot goes into a
+ * running mean and mean deviation, and the margin is set to cover nearly all of them.  On a
+ * device with good timers the margin shrinks and we barely spin; on a sloppy one it grows,
+ * and we trade some CPU for hitting the deadline.
+ * <p>
+ * How far from the deadline we actually return is recorded, along with the sleep
+ * overshoot, in histograms.
+ * <p>
+ * A clock that isn't running (e.g. an AudioClock whose track is paused or starved) may never
+ * reach the deadline, so waits can be broken off with {@link #requestStop()}.
+ * <p>
+ * Not thread-safe; use one per waiting thread.  requestStop() and the histograms may be used
+ * from anywhere.
+ */
+public class FrameWaiter {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final long MIN_MARGIN_NSEC = 100000;         // 100us
+    private static final long MAX_MARGIN_NSEC = 4000000;        // 4ms
+    private static final long INITIAL_MARGIN_NSEC = 1000000;    // 1ms
+    private static final long MAX_SLEEP_NSEC = 500000000;       // 0.5 sec
+    private static final int DEVIATIONS = 4;
+
+    private final MediaClock mClock;
+    private final LatencyHistogram mSleepOvershoot = new LatencyHistogram("sleep overshoot");
+    private final LatencyHistogram mDeliveryError = new LatencyHistogram("delivery error");
+
+    // Running estimates, updated after every sleep.  Start out assuming the timers are
+    // poor, and let the estimates come down as samples arrive.
+    private long mMeanOvershootNsec;
+    private long mMeanDeviationNsec = INITIAL_MARGIN_NSEC / DEVIATIONS;
+    private long mMarginNsec = INITIAL_MARGIN_NSEC;
+
+    private volatile boolean mStopRequested;
+
+    /**
+     * Creates a waiter that uses "clock" for time and sleeping.
+     */
+    public FrameWaiter(MediaClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Makes the current waitUntil() call, and all later ones, return without waiting.
+     * <p>
+     * May be called from any thread.
+     */
+    public void requestStop() {
+        mStopRequested = true;
+    }
+
+    /**
+     * Blocks until the clock reaches "deadlineNsec", or requestStop() is called.
+     *
+     * @return How far past the deadline we returned, in nanoseconds.  Never negative.  Zero
+     *      if we stopped early.
+     */
+    public long waitUntil(long deadlineNsec) {
+        long nowNsec = mClock.nanoTime();
+        while (deadlineNsec - nowNsec > mMarginNsec) {
+            if (mStopRequested) {
+                return 0;
+            }
+            long sleepNsec = Math.min(deadlineNsec - nowNsec - mMarginNsec, MAX_SLEEP_NSEC);
+            long startNsec = nowNsec;
+            mClock.sleep(sleepNsec);
+            nowNsec = mClock.nanoTime();
+            if (nowNsec != startNsec) {
+                // If the clock didn't move at all it's stopped, and this says nothing about
+                // how well we sleep.
+                updateMargin(nowNsec - startNsec - sleepNsec);
+            }
+        }
+
+        // Spin for the rest.  If yielding doesn't move the clock, it's not one that runs on
+        // its own (e.g. a SimulatedClock), or it's stopped, so just sleep through the
+        // remainder.
+        while (nowNsec < deadlineNsec) {
+            if (mStopRequested) {
+                return 0;
+            }
+            Thread.yield();
+            long prevNsec = nowNsec;
+            nowNsec = mClock.nanoTime();
+            if (nowNsec == prevNsec) {
+                mClock.sleep(deadlineNsec - nowNsec);
+                nowNsec = mClock.nanoTime();
+            }
+        }
+
+        long errorNsec = nowNsec - deadlineNsec;
+        mDeliveryError.record(errorNsec / 1000);
+        return errorNsec;
+    }
+
+    /**
+     * Returns the current safety margin, in nanoseconds.
+     */
+    public long getMarginNsec() {
+        return mMarginNsec;
+    }
+
+    /**
+     * Returns the histogram of how much longer sleeps took than requested.
+     */
+    public LatencyHistogram getSleepOvershootHistogram() {
+        return mSleepOvershoot;
+    }
+
+    /**
+     * Returns the histogram of how far past the deadline waitUntil() returned.
+     */
+    public LatencyHistogram getDeliveryErrorHistogram() {
+        return mDeliveryError;
+    }
+
+    /**
+     * Folds a sleep's overshoot into the estimates, and picks a new margin.
+     */
+    private void updateMargin(long overshootNsec) {
+        mSleepOvershoot.record(overshootNsec / 1000);
+
+        // Running mean and mean deviation, weighted 1/16 toward the new sample (the same
+        // approach TCP uses for round-trip times).
+        long errNsec = overshootNsec - mMeanOvershootNsec;
+        mMeanOvershootNsec += errNsec / 16;
+        mMeanDeviationNsec += (Math.abs(errNsec) - mMeanDeviationNsec) / 16;
+
+        long marginNsec = mMeanOvershootNsec + DEVIATIONS * mMeanDeviationNsec;
+        mMarginNsec = Math.max(MIN_MARGIN_NSEC, Math.min(marginNsec, MAX_MARGIN_NSEC));
+        if (VERBOSE) {
+            Log.d(TAG, "overshoot=" + overshootNsec + " mean=" + mMeanOvershootNsec +
+                    " dev=" + mMeanDeviationNsec + " margin=" + mMarginNsec);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FrameWaiter margin=" + (mMarginNsec / 1000) + "us " + mSleepOvershoot + "; " +
+                mDeliveryError;
+    }
+}
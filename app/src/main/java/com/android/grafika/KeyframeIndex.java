@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaExtractor;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Presentation times of the sync frames in a movie's video track.
+ * <p>
+ * Building the index means walking through every sample in the file with MediaExtractor,
+ * which takes a while for a long movie, so indices are cached by file, and can be built
+ * ahead of time on a helper thread with {@link #prefetch(File)}.  A cached index is thrown
+ * out if the file's size or modification time changes.  Only the most recently used
+ * indices are kept.
+ * <p>
+ * Instances are immutable, and the static methods are thread-safe.
+ */
+public class KeyframeIndex {
+    private static final String TAG = MainActivity.TAG;
+
+    private static final int MAX_CACHED = 16;
+
+    private static final LruCache<String, KeyframeIndex> sCache =
+            new LruCache<String, KeyframeIndex>(MAX_CACHED);
+
+    // Indices being built, so a second request waits for the first instead of repeating
+    // the work.  Also serves as the lock for cache lookups.
+    private static final HashMap<String, FutureTask<KeyframeIndex>> sPending =
+            new HashMap<String, FutureTask<KeyframeIndex>>();
+
+    private final long mLastModified;
+    private final long mLength;
+    private final long[] mSyncTimesUsec;      // sorted
+    private final long mLastSampleTimeUsec;
+
+    private KeyframeIndex(long lastModified, long length, long[] syncTimesUsec,
+            long lastSampleTimeUsec) {
+        mLastModified = lastModified;
+        mLength = length;
+        mSyncTimesUsec = syncTimesUsec;
+        mLastSampleTimeUsec = lastSampleTimeUsec;
+    }
+
+    /**
+     * Returns the index for the specified file, building it if necessary.  If it's already
+     * being built (e.g. by {@link #prefetch(File)}), waits for that to finish.  May take a
+     * while, so don't call this on the UI thread.
+     */
+    public static KeyframeIndex get(File file) throws IOException {
+        if (!file.canRead()) {
+            throw new FileNotFoundException("Unable to read " + file);
+        }
+        FutureTask<KeyframeIndex> task;
+        boolean runHere = false;
+        synchronized (sPending) {
+            KeyframeIndex index = getCached(file);
+            if (index != null) {
+                return index;
+            }
+            task = sPending.get(file.getAbsolutePath());
+            if (task == null) {
+                task = startBuild(file);
+                runHere = true;
+            }
+        }
+
+        // Build it without holding the lock.
+        if (runHere) {
+            task.run();
+        }
+        while (true) {
+            try {
+                return task.get();
+            } catch (InterruptedException ie) {
+                // discard
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     * Starts building the index for the specified file on a helper thread, unless it's
+     * already cached or being built.  Returns immediately.
+     */
+    public static void prefetch(File file) {
+        FutureTask<KeyframeIndex> task;
+        synchronized (sPending) {
+            if (getCached(file) != null || sPending.containsKey(file.getAbsolutePath())) {
+                return;
+            }
+            task = startBuild(file);
+        }
+        new Thread(task, "KeyframeIndex prefetch").start();
+    }
+
+    /**
+     * Returns the cached index for the file, or null if there isn't an up-to-date one.
+     * Caller must hold the sPending lock.
+     */
+    private static KeyframeIndex getCached(File file) {
+        KeyframeIndex index = sCache.get(file.getAbsolutePath());
+        if (index != null && index.mLastModified == file.lastModified() &&
+                index.mLength == file.length()) {
+            return index;
+        }
+        return null;
+    }
+
+    /**
+     * Creates a task that builds the index and adds it to the cache, and registers it as
+     * pending.  The caller is responsible for running it.  Caller must hold the sPending
+     * lock.
+     */
+    private static FutureTask<KeyframeIndex> startBuild(final File file) {
+        final String key = file.getAbsolutePath();
+        FutureTask<KeyframeIndex> task = new FutureTask<KeyframeIndex>(
+                new Callable<KeyframeIndex>() {
+            @Override
+            public KeyframeIndex call() throws IOException {
+                KeyframeIndex index = build(file);
+                synchronized (sPending) {
+                    sCache.put(key, index);
+                }
+                return index;
+            }
+        }) {
+            @Override
+            protected void done() {
+                synchronized (sPending) {
+                    sPending.remove(key);
+                }
+            }
+        };
+        sPending.put(key, task);
+        return task;
+    }
+
+    /**
+     * Walks through the video track, recording the time of each sync frame.
+     */
+    private static KeyframeIndex build(File file) throws IOException {
+        long startNsec = System.nanoTime();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        MediaExtractor extractor = null;
+        try {
+            extractor = new MediaExtractor();
+            extractor.setDataSource(file.toString());
+            int trackIndex = MoviePlayer.selectTrack(extractor);
+            if (trackIndex < 0) {
+                throw new RuntimeException("No video track found in " + file);
+            }
+            extractor.selectTrack(trackIndex);
+
+            long[] syncTimes = new long[64];
+            int syncCount = 0;
+            long lastSampleTime = 0;
+            while (extractor.getSampleTrackIndex() >= 0) {
+                long sampleTime = extractor.getSampleTime();
+                if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    if (syncCount == syncTimes.length) {
+                        syncTimes = Arrays.copyOf(syncTimes, syncCount * 2);
+                    }
+                    syncTimes[syncCount++] = sampleTime;
+                }
+                lastSampleTime = Math.max(lastSampleTime, sampleTime);
+                extractor.advance();
+            }
+            if (syncCount == 0) {
+                throw new RuntimeException("No sync frames found in " + file);
+            }
+            syncTimes = Arrays.copyOf(syncTimes, syncCount);
+            Arrays.sort(syncTimes);     // should already be sorted
+
+            Log.d(TAG, "KeyframeIndex: " + syncCount + " sync frames in " + file.getName() +
+                    ", built in " + ((System.nanoTime() - startNsec) / 1000000) + " ms");
+            return new KeyframeIndex(lastModified, length, syncTimes, lastSampleTime);
+        } finally {
+            if (extractor != null) {
+                extractor.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of sync frames.
+     */
+    public int getSyncCount() {
+        return mSyncTimesUsec.length;
+    }
+
+    /**
+     * Returns the presentation time of the Nth sync frame.
+     */
+    public long getSyncTimeUsec(int n) {
+        return mSyncTimesUsec[n];
+    }
+
+    /**
+     * Returns the presentation time of the last sample in the video track.
+     */
+    public long getLastSampleTimeUsec() {
+        return mLastSampleTimeUsec;
+    }
+
+    /**
+     * Returns the position of the last sync frame at or before the specified time.  If the
+     * time precedes the first sync frame, returns 0.
+     */
+    public int findSyncBefore(long timeUsec) {
+        int pos = Arrays.binarySearch(mSyncTimesUsec, timeUsec);
+        if (pos < 0) {
+            pos = -pos - 2;     // insertion point, minus one
+        }
+        return Math.max(pos, 0);
+    }
+
+    /**
+     * Returns the presentation time of the last sync frame at or before the specified time.
+     */
+    public long getSyncTimeBefore(long timeUsec) {
+        return mSyncTimesUsec[findSyncBefore(timeUsec)];
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Fixed-size histogram of time intervals, in microseconds.
+ * <p>
+ * Meant to be left on all the time in per-frame code, so recording doesn't allocate.
+ * Values below 16us get a bucket each; above that, each power of two is split into 8
+ * buckets, so percentiles are accurate to within 12.5%.  Values over about half an hour
+ * share the last bucket.  The exact maximum is tracked separately.
+ * <p>
+ * Thread-safe.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 30;
+    private static final int BUCKET_COUNT =
+            LINEAR_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+    private final String mName;
+    private final int[] mCounts = new int[BUCKET_COUNT];
+    private int mCount;
+    private long mMaxUsec;
+    private long mTotalUsec;
+
+    /**
+     * Creates an empty histogram.  The name is used when logging.
+     */
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    /**
+     * Adds a value.  Negative values are counted as zero.
+     */
+    public synchronized void record(long usec) {
+        if (usec < 0) {
+            usec = 0;
+        }
+        mCounts[getBucket(usec)]++;
+        mCount++;
+        mTotalUsec += usec;
+        if (usec > mMaxUsec) {
+            mMaxUsec = usec;
+        }
+    }
+
+    /**
+     * Discards all values.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mMaxUsec = mTotalUsec = 0;
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     */
+    public synchronized long getMaxUsec() {
+        return mMaxUsec;
+    }
+
+    /**
+     * Returns the mean of all values recorded.
+     */
+    public synchronized long getMeanUsec() {
+        return mCount == 0 ? 0 : mTotalUsec / mCount;
+    }
+
+    /**
+     * Returns the value below which "percentile" percent of the values fall, rounded up
+     * to the top of its bucket (but never more than the maximum).  Returns 0 if nothing
+     * has been recorded.
+     */
+    public synchronized long getPercentileUsec(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100.0);
+        rank = Math.max(rank, 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketMaxUsec(i), mMaxUsec);
+            }
+        }
+        return mMaxUsec;
+    }
+
+    private static int getBucket(long usec) {
+        if (usec < LINEAR_BUCKETS) {
+            return (int) usec;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(usec);    // >= 4
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (usec >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long getBucketMaxUsec(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": n=" + mCount + " p50=" + getPercentileUsec(50) + "us p99=" +
+                getPercentileUsec(99) + "us max=" + mMaxUsec + "us mean=" + getMeanUsec() + "us";
+    }
+}
@@ -69,6 +69,9 @@ public class MainActivity extends ListActivity {
             {"Play video (SurfaceView)",
                     "Plays .mp4 videos created by Grafika",
                     "PlayMovieSurfaceActivity"},
+            {"Play video backward",
+                    "Plays .mp4 videos in reverse, e.g. continuous captures",
+                    "ReversePlayActivity"},
             {"Record GL app",
                     "Records GL app with FBO, re-render, or FB blit",
                     "RecordFBOActivity"},
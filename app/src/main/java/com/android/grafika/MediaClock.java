@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Source of time for pacing playback and stamping recorded frames.
+ * <p>
+ * Most code here just calls System.nanoTime() and Thread.sleep(), which ties it to the
+ * system monotonic clock.  Going through a MediaClock instead lets the same code follow
+ * a different clock (e.g. audio playback, so video stays in sync with it), or run against
+ * a simulated clock that only moves when told to, which makes pacing logic deterministic.
+ * <p>
+ * Implementations:
+ * <ul>
+ * <li>{@link MonotonicClock}: System.nanoTime().  The default everywhere.
+ * <li>{@link VsyncClock}: the system clock, rounded down to the latest display refresh.
+ * <li>{@link AudioClock}: the playback position of an AudioTrack.
+ * <li>{@link SimulatedClock}: advances only when told to, or when someone sleeps on it.
+ * </ul>
+ */
+public interface MediaClock {
+    /**
+     * Returns the current time, in nanoseconds.  Never goes backward.  Only differences
+     * between values are meaningful.
+     */
+    long nanoTime();
+
+    /**
+     * Blocks until roughly "nsec" nanoseconds have passed on this clock.  May return early
+     * or late; callers that care should check {@link #nanoTime()} afterward.
+     */
+    void sleep(long nsec);
+
+    /**
+     * Converts a timestamp from the System.nanoTime() time base, such as a Choreographer
+     * frame time or a SurfaceTexture timestamp, to this clock's time base.
+     */
+    long fromSystemNanos(long systemNanos);
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * MediaClock backed by the system monotonic clock, i.e. System.nanoTime().
+ */
+public class MonotonicClock implements MediaClock {
+    private static final MonotonicClock sInstance = new MonotonicClock();
+
+    /**
+     * Returns the shared instance.  The clock has no state, so one is enough.
+     */
+    public static MonotonicClock getInstance() {
+        return sInstance;
+    }
+
+    private MonotonicClock() {}
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void sleep(long nsec) {
+        try {
+            Thread.sleep(nsec / 1000000, (int) (nsec % 1000000));
+        } catch (InterruptedException ie) {
+            // ignore
+        }
+    }
+
+    @Override
+    public long fromSystemNanos(long systemNanos) {
+        return systemNanos;
+    }
+}
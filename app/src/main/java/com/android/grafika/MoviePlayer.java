@@ -16,42 +16,143 @@
 
 package com.android.grafika;
 
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 
 /**
  * Plays the video track from a movie file to a Surface.
  * <p>
- * TODO: needs more advanced shuttle controls (pause/resume, skip)
+ * By default the decoder is driven synchronously from the thread that calls {@link #play()}.
+ * On API 23+, {@link #setAsyncMode(boolean)} switches to MediaCodec's callback interface
+ * instead: input buffers are filled on a dedicated codec thread as soon as the codec hands
+ * them to us, and output buffers are queued up for the play() thread, which paces and
+ * releases them.  Neither side has to poll, and neither waits on the other.
+ * <p>
+ * {@link #seekTo(long)} jumps to an arbitrary frame without tearing down the decoder.  We
+ * find the preceding sync frame in the file's {@link KeyframeIndex}, flush the decoder, and
+ * decode forward from there, discarding frames until we reach the target.
+ * <p>
+ * {@link #pause()}, {@link #resume()} and {@link #step()} park the play() thread while it's
+ * holding the next decoded frame.  The decoder stays configured, so resuming doesn't pay for
+ * codec startup; the held frame is released as soon as we resume.
+ * <p>
+ * With {@link #setDecoderPool}, successive players can share decoders, avoiding the cost of
+ * allocating a new codec every time play() is called.
+ * <p>
+ * Given a playlist, the movies are played back to back with no gap.  While one movie plays,
+ * the next is opened on a helper thread and its first GOP is read into memory.  If the two
+ * have the same format, the next movie's samples are fed to the same decoder right after the
+ * last samples of the current one, so the decoder never drains.  Otherwise, the current
+ * decoder plays out to end-of-stream, and a new decoder -- already started, on API 23+ --
+ * takes over the Surface.  Either way, presentation times are offset so the playlist looks
+ * like one continuous movie to the FrameCallback.
+ * <p>
+ * For CPU-side processing, {@link #setYuvOutput} configures the decoder without a Surface,
+ * and hands each decoded frame to a callback while it's still in the decoder's output
+ * buffer.  No GL readback is involved.  Consumers that need to hold on to frames can use a
+ * {@link YuvFramePool} to get copies.
  */
 public class MoviePlayer {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
+    // Used to place the next movie in a playlist if we can't tell the frame rate.
+    private static final long DEFAULT_FRAME_DURATION_USEC = 1000000 / 30;
+
+    // Playback rate limits.
+    public static final float MIN_PLAYBACK_RATE = 0.25f;
+    public static final float MAX_PLAYBACK_RATE = 8.0f;
+
+    // At fast playback rates, we don't bother rendering frames closer together than this.
+    // There's no point; the display can't show them.
+    private static final long MIN_RENDER_INTERVAL_USEC = 1000000 / 60;
+
     // Declare this here to reduce allocations.
     private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
     // May be set/read by different threads.
     private volatile boolean mIsStopRequested;
+    private volatile long mSeekRequestUsec = -1;
+    private volatile float mPlaybackRate = 1.0f;
 
-    private File mSourceFile;
+    private File[] mPlaylist;
     private Surface mOutputSurface;
     FrameCallback mFrameCallback;
     private boolean mLoop;
+    private boolean mAsyncMode;
+    private DecoderPool mDecoderPool;
+    private YuvFrameCallback mYuvCallback;
+    private boolean mYuvWantImage;
+    private volatile YuvFormat mYuvFormat;      // null until we see the output format
     private int mVideoWidth;
     private int mVideoHeight;
 
+    // Decode state.  In async mode, these are shared with the codec thread, and guarded by
+    // mCodecLock.  mDecoder is only stopped or replaced with mInputLock held as well, so the
+    // input path may use it under mInputLock once it has checked mCodecStarted.
+    private final Object mCodecLock = new Object();
+    private MediaCodec mDecoder;
+    private boolean mDecoderPooled;
+    private Handler mCodecHandler;      // async mode only
+    private boolean mCodecStarted;
+    private volatile long mFirstInputTimeNsec;     // read outside the lock, for logging
+
+    // Input and playlist state.  In async mode, the codec thread holds mInputLock while it
+    // reads samples from the extractor and queues them, so that file I/O never holds up the
+    // render path, which only needs mCodecLock.  If both locks are needed, take mInputLock
+    // first.
+    private final Object mInputLock = new Object();
+    private boolean mInputDone;
+    private int mInputChunk;
+    private int mParkedInputIndex = -1;     // input buffer held until the next movie opens
+    private MovieSource mCurrent;       // movie being fed to the decoder
+    private File mSourceFile;           // == mCurrent.file
+    private int mPlaylistPos;
+    private FutureTask<MovieSource> mNextSource;    // being prepared, or ready
+    private int mNextPlaylistPos;
+    private MovieSource mSwitchTo;      // waiting for the current decoder to reach EOS
+    private long mPtsOffsetUsec;        // added to the current movie's timestamps
+    private long mLastRawPtsUsec;
+    private long mMaxRawPtsUsec;
+    private long mFrameDurationUsec;
+    private int mDroppedInputCount;
+
+    // Async mode: output buffers waiting for the play() thread, in a ring.  Guarded by
+    // mCodecLock.
+    private int[] mPendingIndex = new int[16];
+    private MediaCodec.BufferInfo[] mPendingInfo = new MediaCodec.BufferInfo[16];
+    private int mPendingHead;
+    private int mPendingCount;
+    private RuntimeException mCodecError;
+
+    // Shuttle controls.  Guarded by mCodecLock.
+    private boolean mPaused;
+    private int mStepFrames;
+
+    // Seek and pause state.  Only used on the play() thread.
+    private long mDiscardUntilUsec = -1;
+    private boolean mParked;        // set if we waited while paused
+    private long mLastRenderPtsUsec = -1;
+    private int mDroppedOutputCount;
+
 
     /**
      * Interface to be implemented by class that manages playback UI.
@@ -82,11 +183,58 @@ public class MoviePlayer {
          */
         void postRender();
 
+        /**
+         * Called when playback resumes after a pause, or jumps to a new position.  The next
+         * frame should be rendered immediately, rather than paced against the previous one.
+         */
+        void resync();
+
         /**
          * Called after the last frame of a looped movie has been rendered.  This allows the
          * callback to adjust its expectations of the next presentation time stamp.
          */
         void loopReset();
+
+        /**
+         * Called when the playback rate changes.  A rate of 2.0 means frames should be
+         * presented twice as fast as their timestamps say.  May be called from any thread.
+         */
+        void setPlaybackRate(float rate);
+
+        /**
+         * Called when the player is asked to stop.  preRender() should return promptly,
+         * even if it's waiting on a clock that has stopped.  May be called from any thread.
+         */
+        void requestStop();
+
+        /**
+         * Called after preRender().  Returns the System.nanoTime() time at which the frame
+         * should appear on the display, or 0 to show it as soon as possible.  A nonzero
+         * value is passed to the decoder with the frame on API 21+, and ignored on
+         * older releases.
+         */
+        long getRenderTimeNsec();
+    }
+
+
+    /**
+     * Callback invoked with decoded frames in YUV output mode.
+     */
+    public interface YuvFrameCallback {
+        /**
+         * Called on the play() thread with each decoded frame, in place of rendering it.
+         * The frame still belongs to the decoder, and is only valid until this method
+         * returns.  Copy out anything you need to keep.
+         *
+         * @param data The frame, between the buffer's position and limit.  Null if the
+         *      frame is provided as an Image.  Do not modify.
+         * @param image The frame, if Image output was requested and the decoder supports
+         *      it.  Null otherwise.
+         * @param format Layout of the frame in "data".
+         * @param presentationTimeUsec The frame's presentation time, in microseconds.
+         */
+        void onYuvFrame(ByteBuffer data, Image image, YuvFormat format,
+                        long presentationTimeUsec);
     }
 
 
@@ -100,46 +248,52 @@ public class MoviePlayer {
      */
     public MoviePlayer(File sourceFile, Surface outputSurface, FrameCallback frameCallback)
             throws IOException {
-        mSourceFile = sourceFile;
+        this(new File[] { sourceFile }, outputSurface, frameCallback);
+    }
+
+    /**
+     * Constructs a MoviePlayer that plays several movies back to back.  In loop mode, the
+     * whole playlist is repeated.
+     *
+     * @param playlist      The video files to open, in order.
+     * @param outputSurface The Surface where frames will be sent.
+     * @param frameCallback Callback object, used to pace output.
+     * @throws IOException
+     */
+    public MoviePlayer(File[] playlist, Surface outputSurface, FrameCallback frameCallback)
+            throws IOException {
+        if (playlist.length == 0) {
+            throw new IllegalArgumentException("empty playlist");
+        }
+        mPlaylist = playlist.clone();
+        mSourceFile = playlist[0];
         mOutputSurface = outputSurface;
         mFrameCallback = frameCallback;
 
-        // Pop the file open and pull out the video characteristics.
-        // TODO: consider leaving the extractor open.  Should be able to just seek back to
-        //       the start after each iteration of play.  Need to rearrange the API a bit --
-        //       currently play() is taking an all-in-one open+work+release approach.
-        MediaExtractor extractor = null;
+        // Pop the first file open and pull out the video characteristics.
+        MovieSource source = MovieSource.open(mSourceFile);
         try {
-            extractor = new MediaExtractor();
-            extractor.setDataSource(sourceFile.toString());
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
-                throw new RuntimeException("No video track found in " + mSourceFile);
-            }
-            extractor.selectTrack(trackIndex);
-
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
-            mVideoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
-            mVideoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+            mVideoWidth = source.format.getInteger(MediaFormat.KEY_WIDTH);
+            mVideoHeight = source.format.getInteger(MediaFormat.KEY_HEIGHT);
             if (VERBOSE) {
                 Log.d(TAG, "Video size is " + mVideoWidth + "x" + mVideoHeight);
             }
         } finally {
-            if (extractor != null) {
-                extractor.release();
-            }
+            source.release();
         }
     }
 
     /**
-     * Returns the width, in pixels, of the video.
+     * Returns the width, in pixels, of the video.  For a playlist, this is the width of the
+     * first movie.
      */
     public int getVideoWidth() {
         return mVideoWidth;
     }
 
     /**
-     * Returns the height, in pixels, of the video.
+     * Returns the height, in pixels, of the video.  For a playlist, this is the height of the
+     * first movie.
      */
     public int getVideoHeight() {
         return mVideoHeight;
@@ -152,6 +306,148 @@ public class MoviePlayer {
         mLoop = loopMode;
     }
 
+    /**
+     * Selects the asynchronous (MediaCodec.Callback) decode loop.  Ignored before API 23.
+     * Must be called before {@link #play()}.
+     */
+    public void setAsyncMode(boolean asyncMode) {
+        mAsyncMode = asyncMode;
+    }
+
+    /**
+     * Gets the decoder from a pool, and gives it back when playback ends, instead of creating
+     * and releasing one.  Not used in async mode.  Must be called before {@link #play()}.
+     */
+    public void setDecoderPool(DecoderPool pool) {
+        mDecoderPool = pool;
+    }
+
+    /**
+     * Delivers decoded frames to a callback instead of a Surface.  The player must have been
+     * constructed with a null Surface.  Decoder pooling doesn't apply in this mode.  Must be
+     * called before {@link #play()}.
+     *
+     * @param callback Receives the frames, on the play() thread.
+     * @param wantImage If set, frames are delivered as Images rather than ByteBuffers where
+     *      possible (API 21+).  Images describe each plane's layout explicitly, which copes
+     *      with vendor-specific formats.
+     */
+    public void setYuvOutput(YuvFrameCallback callback, boolean wantImage) {
+        if (mOutputSurface != null) {
+            throw new IllegalStateException("YUV output requires a null output Surface");
+        }
+        mYuvCallback = callback;
+        mYuvWantImage = wantImage;
+    }
+
+    /**
+     * Returns the layout of the decoded frames in YUV output mode, or null if the decoder
+     * hasn't produced any yet.
+     */
+    public YuvFormat getYuvFormat() {
+        return mYuvFormat;
+    }
+
+    /**
+     * Sets the playback rate, as a multiple of normal speed.  The rate is clamped to
+     * [{@link #MIN_PLAYBACK_RATE}, {@link #MAX_PLAYBACK_RATE}], and passed on to the
+     * FrameCallback, which paces frames accordingly.
+     * <p>
+     * When speeding up, the player keeps the decoder and display from falling behind by
+     * dropping frames: AVC non-reference frames are skipped before they're decoded if they
+     * can't be shown at this rate anyway, and decoded frames that would follow the previous
+     * one too closely are released without rendering.  Timestamps are not altered, so
+     * seeking and the like still work in terms of the original timeline.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void setPlaybackRate(float rate) {
+        rate = Math.max(MIN_PLAYBACK_RATE, Math.min(MAX_PLAYBACK_RATE, rate));
+        mPlaybackRate = rate;
+        if (mFrameCallback != null) {
+            mFrameCallback.setPlaybackRate(rate);
+        }
+    }
+
+    /**
+     * Returns the current playback rate.
+     */
+    public float getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    /**
+     * Asks the player to jump to the frame at or after the specified time.  If several
+     * requests arrive before the player gets to them, only the last one is handled.
+     * <p>
+     * The time is relative to the movie currently being decoded.  With a playlist, that
+     * may be a little ahead of the movie on screen.
+     * <p>
+     * Seeking uses the file's sync frame index.  Building that requires a pass through the
+     * file, so we start it on a helper thread as soon as each movie is opened; a seek that
+     * arrives before it's ready waits for it.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void seekTo(long timeUsec) {
+        synchronized (mCodecLock) {
+            mSeekRequestUsec = Math.max(timeUsec, 0);
+            mCodecLock.notifyAll();     // wake the async loop
+        }
+    }
+
+    /**
+     * Pauses playback.  The frame that would have been rendered next is held until we're
+     * resumed or stepped.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void pause() {
+        synchronized (mCodecLock) {
+            mPaused = true;
+            mStepFrames = 0;
+        }
+    }
+
+    /**
+     * Resumes playback after {@link #pause()} or {@link #step()}.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void resume() {
+        synchronized (mCodecLock) {
+            mPaused = false;
+            mStepFrames = 0;
+            mCodecLock.notifyAll();
+        }
+    }
+
+    /**
+     * Renders the next frame, then pauses.  Pauses playback first if it's running.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void step() {
+        synchronized (mCodecLock) {
+            if (mPaused) {
+                mStepFrames++;
+            } else {
+                mPaused = true;
+                mStepFrames = 1;
+            }
+            mCodecLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns true if playback is paused (or single-stepping).
+     */
+    public boolean isPaused() {
+        synchronized (mCodecLock) {
+            return mPaused;
+        }
+    }
+
     /**
      * Asks the player to stop.  Returns without waiting for playback to halt.
      * <p>
@@ -159,6 +455,12 @@ public class MoviePlayer {
      */
     public void requestStop() {
         mIsStopRequested = true;
+        if (mFrameCallback != null) {
+            mFrameCallback.requestStop();   // don't leave the decode thread waiting to render
+        }
+        synchronized (mCodecLock) {
+            mCodecLock.notifyAll();     // wake the async loop
+        }
     }
 
     /**
@@ -168,45 +470,53 @@ public class MoviePlayer {
      * frameCallback.
      */
     public void play() throws IOException {
-        MediaExtractor extractor = null;
-        MediaCodec decoder = null;
-
-        // The MediaExtractor error messages aren't very useful.  Check to see if the input
-        // file exists so we can throw a better one if it's not there.
-        if (!mSourceFile.canRead()) {
-            throw new FileNotFoundException("Unable to read " + mSourceFile);
-        }
+        HandlerThread codecThread = null;
+        boolean async = mAsyncMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
 
+        MovieSource source = MovieSource.open(mPlaylist[0]);
         try {
-            extractor = new MediaExtractor();
-            extractor.setDataSource(mSourceFile.toString());
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
-                throw new RuntimeException("No video track found in " + mSourceFile);
+            resetDecodeState();
+            if (async) {
+                codecThread = new HandlerThread("MoviePlayer codec");
+                codecThread.start();
+                mCodecHandler = new Handler(codecThread.getLooper());
             }
-            extractor.selectTrack(trackIndex);
-
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
-
-            // Create a MediaCodec decoder, and configure it with the MediaFormat from the
-            // extractor.  It's very important to use the format from the extractor because
-            // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, mOutputSurface, null, 0);
-            decoder.start();
+            synchronized (mInputLock) {
+                mPlaylistPos = 0;
+                useSource(source);
+            }
+            startDecoder(source);
 
-            doExtract(extractor, trackIndex, decoder, mFrameCallback);
+            if (async) {
+                doExtractAsync(mFrameCallback);
+            } else {
+                doExtract(mFrameCallback);
+            }
         } finally {
             // release everything we grabbed
-            if (decoder != null) {
-                decoder.stop();
-                decoder.release();
-                decoder = null;
+            stopDecoder();
+            if (codecThread != null) {
+                codecThread.quit();
+                codecThread = null;
+                mCodecHandler = null;
             }
-            if (extractor != null) {
-                extractor.release();
-                extractor = null;
+            synchronized (mInputLock) {
+                if (mCurrent != null) {
+                    mCurrent.release();
+                    mCurrent = null;
+                }
+                if (mSwitchTo != null) {
+                    mSwitchTo.release();
+                    mSwitchTo = null;
+                }
+                MovieSource next = takeNextSource();
+                if (next != null) {
+                    next.release();
+                }
+                if (mDroppedInputCount != 0 || mDroppedOutputCount != 0) {
+                    Log.d(TAG, "Dropped " + mDroppedInputCount + " frames before decode, " +
+                            mDroppedOutputCount + " after");
+                }
             }
         }
     }
@@ -216,7 +526,7 @@ public class MoviePlayer {
      *
      * @return the track index, or -1 if no video track is found.
      */
-    private static int selectTrack(MediaExtractor extractor) {
+    static int selectTrack(MediaExtractor extractor) {
         // Select the first video track we find, ignore the rest.
         int numTracks = extractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
@@ -233,11 +543,79 @@ public class MoviePlayer {
         return -1;
     }
 
+    /**
+     * Creates a decoder for the specified movie, sending output to our Surface, and starts
+     * it.  Uses the movie's standby decoder if it has one.
+     */
+    private void startDecoder(MovieSource source) throws IOException {
+        MediaCodec decoder;
+        boolean pooled = false;
+        boolean started = true;
+        if (source.hasStandbyDecoder() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            decoder = source.takeStandbyDecoder(mOutputSurface);
+        } else if (mCodecHandler == null && mDecoderPool != null && mYuvCallback == null) {
+            // Pooled decoders are always in synchronous mode.
+            decoder = mDecoderPool.acquire(source.format, mOutputSurface);
+            pooled = true;
+        } else {
+            // Create a MediaCodec decoder, and configure it with the MediaFormat from the
+            // extractor.  It's very important to use the format from the extractor because
+            // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
+            String mime = source.format.getString(MediaFormat.KEY_MIME);
+            decoder = MediaCodec.createDecoderByType(mime);
+            if (mCodecHandler != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                // The callback has to be set before configure().
+                setDecoderCallback(decoder, mCodecHandler);
+            }
+            decoder.configure(source.format, mOutputSurface, null, 0);
+            started = false;
+        }
+        synchronized (mCodecLock) {
+            if (!started) {
+                decoder.start();
+            }
+            mDecoder = decoder;
+            mDecoderPooled = pooled;
+            mCodecStarted = true;
+        }
+        mYuvFormat = null;
+    }
+
+    /**
+     * Stops the decoder, and releases it or gives it back to the pool.
+     */
+    private void stopDecoder() {
+        MediaCodec decoder;
+        boolean pooled;
+        // Holding mInputLock means the codec thread isn't partway through queueing input.
+        synchronized (mInputLock) {
+            synchronized (mCodecLock) {
+                decoder = mDecoder;
+                pooled = mDecoderPooled;
+                if (decoder == null) {
+                    return;
+                }
+                // Keep the codec thread's hands off while we shut down.
+                mDecoder = null;
+                mParkedInputIndex = -1;
+                mCodecStarted = false;
+                mPendingCount = 0;
+                if (!pooled) {
+                    decoder.stop();
+                }
+            }
+        }
+        if (pooled) {
+            mDecoderPool.recycle(decoder);
+        } else {
+            decoder.release();
+        }
+    }
+
     /**
      * Work loop.  We execute here until we run out of video or are told to stop.
      */
-    private void doExtract(MediaExtractor extractor, int trackIndex, MediaCodec decoder,
-                           FrameCallback frameCallback) {
+    private void doExtract(FrameCallback frameCallback) {
         // We need to strike a balance between providing input and reading output that
         // operates efficiently without delays on the output side.
         //
@@ -297,50 +675,38 @@ public class MoviePlayer {
         // in logcat.  Use "logcat -v threadtime" to see sub-second timing.
 
         final int TIMEOUT_USEC = 10000;
-        ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
-        int inputChunk = 0;
-        long firstInputTimeNsec = -1;
+        MediaCodec decoder = null;
+        ByteBuffer[] decoderInputBuffers = null;
 
         boolean outputDone = false;
-        boolean inputDone = false;
         while (!outputDone) {
             if (VERBOSE) Log.d(TAG, "loop");
             if (mIsStopRequested) {
                 Log.d(TAG, "Stop requested");
                 return;
             }
+            if (mSeekRequestUsec >= 0) {
+                doSeek(frameCallback);
+                continue;
+            }
+            if (decoder != mDecoder) {
+                // First time through, or we switched decoders between movies.
+                decoder = mDecoder;
+                decoderInputBuffers = decoder.getInputBuffers();
+            }
 
-            // Feed more data to the decoder.
-            if (!inputDone) {
-                int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+            // Feed more data to the decoder.  If we're holding on to a buffer because the
+            // next movie isn't open yet, try that one again first.
+            if (!mInputDone) {
+                int inputBufIndex = mParkedInputIndex;
                 if (inputBufIndex >= 0) {
-                    if (firstInputTimeNsec == -1) {
-                        firstInputTimeNsec = System.nanoTime();
-                    }
-                    ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
-                    // Read the sample data into the ByteBuffer.  This neither respects nor
-                    // updates inputBuf's position, limit, etc.
-                    int chunkSize = extractor.readSampleData(inputBuf, 0);
-                    if (chunkSize < 0) {
-                        // End of stream -- send empty frame with EOS flag set.
-                        decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
-                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        inputDone = true;
-                        if (VERBOSE) Log.d(TAG, "sent input EOS");
-                    } else {
-                        if (extractor.getSampleTrackIndex() != trackIndex) {
-                            Log.w(TAG, "WEIRD: got sample from track " +
-                                    extractor.getSampleTrackIndex() + ", expected " + trackIndex);
-                        }
-                        long presentationTimeUs = extractor.getSampleTime();
-                        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
-                                presentationTimeUs, 0 /*flags*/);
-                        if (VERBOSE) {
-                            Log.d(TAG, "submitted frame " + inputChunk + " to dec, size=" +
-                                    chunkSize);
-                        }
-                        inputChunk++;
-                        extractor.advance();
+                    mParkedInputIndex = -1;
+                } else {
+                    inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+                }
+                if (inputBufIndex >= 0) {
+                    if (!queueInputSample(inputBufIndex, decoderInputBuffers[inputBufIndex])) {
+                        mParkedInputIndex = inputBufIndex;
                     }
                 } else {
                     if (VERBOSE) Log.d(TAG, "input buffer not available");
@@ -353,59 +719,688 @@ public class MoviePlayer {
                     // no output available yet
                     if (VERBOSE) Log.d(TAG, "no output from decoder available");
                 } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    // not important for us, since we're using Surface
+                    // not important for us; in YUV mode we look buffers up as we need them
                     if (VERBOSE) Log.d(TAG, "decoder output buffers changed");
                 } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     MediaFormat newFormat = decoder.getOutputFormat();
                     if (VERBOSE) Log.d(TAG, "decoder output format changed: " + newFormat);
+                    mYuvFormat = null;      // look again on the next frame
                 } else if (decoderStatus < 0) {
                     throw new RuntimeException(
                             "unexpected result from decoder.dequeueOutputBuffer: " +
                                     decoderStatus);
                 } else { // decoderStatus >= 0
-                    if (firstInputTimeNsec != 0) {
-                        // Log the delay from the first buffer of input to the first buffer
-                        // of output.
-                        long nowNsec = System.nanoTime();
-                        Log.d(TAG, "startup lag " + ((nowNsec - firstInputTimeNsec) / 1000000.0) + " ms");
-                        firstInputTimeNsec = 0;
+                    outputDone = processOutputBuffer(decoderStatus, mBufferInfo,
+                            frameCallback);
+                }
+            }
+        }
+    }
+
+    /**
+     * Work loop for async mode.  The codec thread keeps the decoder fed; we wait for output
+     * buffers to show up in the pending queue, and render them.
+     */
+    private void doExtractAsync(FrameCallback frameCallback) {
+        MediaCodec.BufferInfo info = mBufferInfo;
+        boolean outputDone = false;
+        while (!outputDone) {
+            if (mSeekRequestUsec >= 0) {
+                doSeek(frameCallback);
+            }
+            int index;
+            synchronized (mCodecLock) {
+                while (mPendingCount == 0 && mCodecError == null && !mIsStopRequested &&
+                        mSeekRequestUsec < 0) {
+                    try {
+                        mCodecLock.wait();
+                    } catch (InterruptedException ie) {
+                        // discard
                     }
-                    boolean doLoop = false;
-                    if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
-                            " (size=" + mBufferInfo.size + ")");
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        if (VERBOSE) Log.d(TAG, "output EOS");
-                        if (mLoop) {
-                            doLoop = true;
-                        } else {
-                            outputDone = true;
-                        }
+                }
+                if (mCodecError != null) {
+                    throw mCodecError;
+                }
+                if (mIsStopRequested) {
+                    Log.d(TAG, "Stop requested");
+                    return;
+                }
+                if (mSeekRequestUsec >= 0) {
+                    continue;
+                }
+                MediaCodec.BufferInfo pending = mPendingInfo[mPendingHead];
+                info.set(pending.offset, pending.size, pending.presentationTimeUs,
+                        pending.flags);
+                index = mPendingIndex[mPendingHead];
+                mPendingHead = (mPendingHead + 1) % mPendingIndex.length;
+                mPendingCount--;
+            }
+            outputDone = processOutputBuffer(index, info, frameCallback);
+        }
+    }
+
+    /**
+     * Clears the decode state before starting (or restarting) the decoder.
+     */
+    private void resetDecodeState() {
+        synchronized (mInputLock) {
+            mInputDone = false;
+            mInputChunk = 0;
+            mParkedInputIndex = -1;
+            mPtsOffsetUsec = 0;
+            mDroppedInputCount = 0;
+        }
+        synchronized (mCodecLock) {
+            mFirstInputTimeNsec = -1;
+            mPendingCount = 0;
+            mCodecError = null;
+        }
+        mLastRenderPtsUsec = -1;
+        mDroppedOutputCount = 0;
+    }
+
+    /**
+     * Makes the specified movie the one we're feeding to the decoder, releasing the previous
+     * one, and starts preparing the movie after it.
+     */
+    private void useSource(MovieSource source) {
+        if (mCurrent != null) {
+            mCurrent.release();
+        }
+        mCurrent = source;
+        mSourceFile = source.file;
+        KeyframeIndex.prefetch(source.file);    // have it ready for the first seek
+        mLastRawPtsUsec = -1;
+        mMaxRawPtsUsec = 0;
+        mFrameDurationUsec = Long.MAX_VALUE;
+        prefetchNext();
+    }
+
+    /**
+     * Starts opening the next movie in the playlist on a helper thread.  If the current
+     * decoder won't be able to handle it, a decoder is created for it as well (API 23+,
+     * synchronous mode only).
+     */
+    private void prefetchNext() {
+        int pos = mPlaylistPos + 1;
+        if (pos == mPlaylist.length) {
+            if (!mLoop || mPlaylist.length == 1) {
+                return;     // a single movie loops by rewinding
+            }
+            pos = 0;
+        }
+        final File file = mPlaylist[pos];
+        final MediaFormat currentFormat = mCurrent.format;
+        final Handler codecHandler = mCodecHandler;
+        // Standby decoders need a Surface to park on, and we can't set up callbacks for them.
+        final boolean wantDecoder = (codecHandler == null && mYuvCallback == null);
+
+        mNextPlaylistPos = pos;
+        mNextSource = new FutureTask<MovieSource>(new Callable<MovieSource>() {
+            @Override
+            public MovieSource call() throws IOException {
+                MovieSource source = MovieSource.open(file);
+                boolean success = false;
+                try {
+                    source.prefetchFirstGop();
+                    if (wantDecoder && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M &&
+                            !DecoderPool.sameFormat(currentFormat, source.format)) {
+                        source.prepareStandbyDecoder();
+                    }
+                    success = true;
+                } finally {
+                    if (!success) {
+                        source.release();
                     }
+                }
+                return source;
+            }
+        }) {
+            @Override
+            protected void done() {
+                // In async mode, the codec thread may be holding an input buffer until this
+                // movie is ready.
+                if (codecHandler != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    codecHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            retryParkedInput();
+                        }
+                    });
+                }
+            }
+        };
+        new Thread(mNextSource, "MoviePlayer prefetch").start();
+    }
 
-                    boolean doRender = (mBufferInfo.size != 0);
+    /**
+     * Returns true if the next movie in the playlist is still being opened.
+     */
+    private boolean isNextSourcePending() {
+        return mNextSource != null && !mNextSource.isDone();
+    }
 
-                    // As soon as we call releaseOutputBuffer, the buffer will be forwarded
-                    // to SurfaceTexture to convert to a texture.  We can't control when it
-                    // appears on-screen, but we can manage the pace at which we release
-                    // the buffers.
-                    if (doRender && frameCallback != null) {
-                        frameCallback.preRender(mBufferInfo.presentationTimeUs);
+    /**
+     * Returns the next movie in the playlist, waiting for it to finish opening if
+     * necessary.  Returns null if there isn't one, or it couldn't be opened.
+     */
+    private MovieSource takeNextSource() {
+        FutureTask<MovieSource> task = mNextSource;
+        if (task == null) {
+            return null;
+        }
+        mNextSource = null;
+        while (true) {
+            try {
+                MovieSource source = task.get();
+                mPlaylistPos = mNextPlaylistPos;
+                return source;
+            } catch (InterruptedException ie) {
+                // discard
+            } catch (ExecutionException ee) {
+                Log.w(TAG, "HEY: unable to open " + mPlaylist[mNextPlaylistPos],
+                        ee.getCause());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Moves on to the next movie.  Its timestamps are offset to start one frame after the
+     * last frame of the current movie.
+     */
+    private void spliceTo(MovieSource next) {
+        long frameDurationUsec = (mFrameDurationUsec == Long.MAX_VALUE) ?
+                DEFAULT_FRAME_DURATION_USEC : mFrameDurationUsec;
+        mPtsOffsetUsec += mMaxRawPtsUsec + frameDurationUsec - next.getFirstPtsUsec();
+        Log.d(TAG, "Continuing with " + next.file.getName() + ", pts offset " +
+                mPtsOffsetUsec);
+        useSource(next);
+    }
+
+    /**
+     * Reads the next sample from the current movie into the specified input buffer, and
+     * submits it to the decoder.  At the end of the movie, either carries on with the next
+     * one, or submits an empty buffer with the EOS flag.
+     * <p>
+     * If we reach the end of the movie while the next one is still being opened, we don't
+     * wait for it -- that would hold up rendering the end of this one.  Instead we return
+     * false without using the buffer, and the caller offers it again later.
+     */
+    private boolean queueInputSample(int inputBufIndex, ByteBuffer inputBuf) {
+        if (mFirstInputTimeNsec == -1) {
+            mFirstInputTimeNsec = System.nanoTime();
+        }
+        MovieSource source = mCurrent;
+        MediaExtractor extractor = source.extractor;
+        boolean prefetched = source.hasPrefetched();
+        int chunkSize;
+        long rawTimeUsec;
+        if (prefetched) {
+            rawTimeUsec = source.getPrefetchedTime();
+            chunkSize = source.readPrefetched(inputBuf);
+        } else {
+            // Read the sample data into the ByteBuffer.  This neither respects nor
+            // updates inputBuf's position, limit, etc.
+            chunkSize = extractor.readSampleData(inputBuf, 0);
+            rawTimeUsec = extractor.getSampleTime();
+        }
+        if (chunkSize < 0) {
+            // End of this movie.  If the decoder can handle the next one as-is, just keep
+            // feeding it.
+            MovieSource next = mSwitchTo;
+            if (next == null) {
+                if (isNextSourcePending()) {
+                    if (VERBOSE) Log.d(TAG, "next movie not ready, holding input buffer");
+                    return false;
+                }
+                next = takeNextSource();
+            }
+            if (next != null && DecoderPool.sameFormat(source.format, next.format)) {
+                mSwitchTo = null;
+                spliceTo(next);
+                return queueInputSample(inputBufIndex, inputBuf);
+            }
+
+            // End of stream -- send empty frame with EOS flag set.  If there's another
+            // movie, we switch decoders when the EOS comes out the other end.
+            mSwitchTo = next;
+            mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputDone = true;
+            if (VERBOSE) Log.d(TAG, "sent input EOS");
+        } else {
+            if (!prefetched && extractor.getSampleTrackIndex() != source.trackIndex) {
+                Log.w(TAG, "WEIRD: got sample from track " +
+                        extractor.getSampleTrackIndex() + ", expected " + source.trackIndex);
+            }
+            // Samples arrive in decode order, so the smallest gap between successive
+            // timestamps is our best guess at the frame duration.
+            if (mLastRawPtsUsec >= 0) {
+                long delta = Math.abs(rawTimeUsec - mLastRawPtsUsec);
+                if (delta > 0 && delta < mFrameDurationUsec) {
+                    mFrameDurationUsec = delta;
+                }
+            }
+            mLastRawPtsUsec = rawTimeUsec;
+            mMaxRawPtsUsec = Math.max(mMaxRawPtsUsec, rawTimeUsec);
+
+            if (canDropInput() && source.isDisposable(inputBuf, chunkSize)) {
+                // Playing fast enough that we'd throw some frames away after decoding.
+                // Nothing depends on this one, so don't bother decoding it.
+                if (VERBOSE) Log.d(TAG, "dropping input " + rawTimeUsec);
+                mDroppedInputCount++;
+                if (!prefetched) {
+                    extractor.advance();
+                }
+                return queueInputSample(inputBufIndex, inputBuf);
+            }
+
+            mDecoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                    rawTimeUsec + mPtsOffsetUsec, 0 /*flags*/);
+            if (VERBOSE) {
+                Log.d(TAG, "submitted frame " + mInputChunk + " to dec, size=" +
+                        chunkSize);
+            }
+            mInputChunk++;
+            if (!prefetched) {
+                extractor.advance();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the playback rate is high enough that we can't show every frame.
+     */
+    private boolean canDropInput() {
+        float rate = mPlaybackRate;
+        if (rate <= 1.0f) {
+            return false;
+        }
+        long frameDurationUsec = (mFrameDurationUsec == Long.MAX_VALUE) ?
+                DEFAULT_FRAME_DURATION_USEC : mFrameDurationUsec;
+        return frameDurationUsec / rate < MIN_RENDER_INTERVAL_USEC;
+    }
+
+    /**
+     * Returns true if a decoded frame should be skipped because it would be shown too soon
+     * after the previous one at the current playback rate.
+     */
+    private boolean isTooSoon(long presentationTimeUsec) {
+        float rate = mPlaybackRate;
+        if (rate <= 1.0f || mLastRenderPtsUsec < 0) {
+            return false;
+        }
+        synchronized (mCodecLock) {
+            if (mPaused) {
+                return false;   // single-stepping shows every frame
+            }
+        }
+        long deltaUsec = presentationTimeUsec - mLastRenderPtsUsec;
+        return deltaUsec >= 0 && deltaUsec < MIN_RENDER_INTERVAL_USEC * rate;
+    }
+
+    /**
+     * Renders (or discards) a decoded frame, and handles end-of-stream.
+     *
+     * @return true when playback is complete.
+     */
+    private boolean processOutputBuffer(int decoderStatus, MediaCodec.BufferInfo info,
+                                        FrameCallback frameCallback) {
+        if (mFirstInputTimeNsec != 0) {
+            // Log the delay from the first buffer of input to the first buffer
+            // of output.
+            long nowNsec = System.nanoTime();
+            Log.d(TAG, "startup lag " + ((nowNsec - mFirstInputTimeNsec) / 1000000.0) + " ms");
+            mFirstInputTimeNsec = 0;
+        }
+        boolean outputDone = false;
+        boolean doLoop = false;
+        boolean doSwitch = false;
+        if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
+                " (size=" + info.size + ")");
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if (VERBOSE) Log.d(TAG, "output EOS");
+            synchronized (mInputLock) {
+                doSwitch = (mSwitchTo != null);
+            }
+            if (doSwitch) {
+                // Next movie in the playlist needs a different decoder.
+            } else if (mLoop) {
+                doLoop = true;
+            } else {
+                outputDone = true;
+            }
+        }
+
+        boolean doRender = (info.size != 0);
+        if (doRender && info.presentationTimeUs < mDiscardUntilUsec) {
+            // Decoding forward from a sync frame to a seek target.  Don't show this one,
+            // and don't wait for it either.
+            if (VERBOSE) Log.d(TAG, "discarding " + info.presentationTimeUs);
+            doRender = false;
+        } else {
+            mDiscardUntilUsec = -1;
+        }
+        if (doRender && isTooSoon(info.presentationTimeUs)) {
+            // Playing fast; skip this one, and don't wait for it.
+            if (VERBOSE) Log.d(TAG, "dropping output " + info.presentationTimeUs);
+            mDroppedOutputCount++;
+            doRender = false;
+        }
+        if (doRender && !waitWhilePaused()) {
+            // Stop or seek requested while we were paused; the held frame is obsolete.
+            doRender = false;
+        }
+        if (doRender && mParked) {
+            mParked = false;
+            if (frameCallback != null) {
+                frameCallback.resync();
+            }
+        }
+
+        // As soon as we call releaseOutputBuffer, the buffer will be forwarded
+        // to SurfaceTexture to convert to a texture.  We can't control when it
+        // appears on-screen, but we can manage the pace at which we release
+        // the buffers.
+        if (doRender) {
+            mLastRenderPtsUsec = info.presentationTimeUs;
+        }
+        long renderTimeNsec = 0;
+        if (doRender && frameCallback != null) {
+            frameCallback.preRender(info.presentationTimeUs);
+            renderTimeNsec = frameCallback.getRenderTimeNsec();
+        }
+        if (mYuvCallback != null) {
+            if (doRender) {
+                deliverYuvFrame(decoderStatus, info);
+            }
+            mDecoder.releaseOutputBuffer(decoderStatus, false);
+        } else if (doRender && renderTimeNsec != 0 &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Let the compositor hold the frame until its vsync.
+            mDecoder.releaseOutputBuffer(decoderStatus, renderTimeNsec);
+        } else {
+            mDecoder.releaseOutputBuffer(decoderStatus, doRender);
+        }
+        if (doRender && frameCallback != null) {
+            frameCallback.postRender();
+        }
+
+        if (doSwitch) {
+            switchDecoder();
+        } else if (doLoop) {
+            Log.d(TAG, "Reached EOS, looping");
+            rewind();
+            frameCallback.loopReset();
+        }
+        return outputDone;
+    }
+
+    /**
+     * Hands a decoded frame to the YUV callback, without copying it.
+     */
+    private void deliverYuvFrame(int decoderStatus, MediaCodec.BufferInfo info) {
+        YuvFormat format = mYuvFormat;
+        if (format == null) {
+            format = YuvFormat.fromMediaFormat(mDecoder.getOutputFormat());
+            mYuvFormat = format;
+            Log.d(TAG, "YUV output: " + format);
+        }
+
+        Image image = null;
+        if (mYuvWantImage && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Returns null if the decoder's output format can't be described as an Image.
+            image = mDecoder.getOutputImage(decoderStatus);
+        }
+        ByteBuffer data = null;
+        if (image == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                data = mDecoder.getOutputBuffer(decoderStatus);
+            } else {
+                data = mDecoder.getOutputBuffers()[decoderStatus];
+            }
+            data.limit(info.offset + info.size);
+            data.position(info.offset);
+        }
+        mYuvCallback.onYuvFrame(data, image, format, info.presentationTimeUs);
+    }
+
+    /**
+     * Replaces the decoder that just reached EOS with one for the next movie in the
+     * playlist.  The new decoder picks up the output Surface as soon as the old one lets
+     * go of it.
+     */
+    private void switchDecoder() {
+        long startNsec = System.nanoTime();
+        stopDecoder();
+        MovieSource next;
+        synchronized (mInputLock) {
+            next = mSwitchTo;
+            mSwitchTo = null;
+            spliceTo(next);
+            mInputDone = false;
+            mFirstInputTimeNsec = -1;       // log the lag for the new decoder
+        }
+        try {
+            startDecoder(next);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        mDiscardUntilUsec = -1;
+        Log.d(TAG, "Switched decoders in " + ((System.nanoTime() - startNsec) / 1000) +
+                " us");
+    }
+
+    /**
+     * Blocks while playback is paused.  Consumes one frame step if single-stepping.
+     *
+     * @return false if the current frame should be dropped rather than rendered.
+     */
+    private boolean waitWhilePaused() {
+        synchronized (mCodecLock) {
+            while (mPaused && mStepFrames == 0 && !mIsStopRequested && mSeekRequestUsec < 0) {
+                mParked = true;
+                try {
+                    mCodecLock.wait();
+                } catch (InterruptedException ie) {
+                    // discard
+                }
+            }
+            if (mIsStopRequested || mSeekRequestUsec >= 0) {
+                return false;
+            }
+            if (mPaused) {
+                mStepFrames--;
+                mParked = true;     // render it now, not when the previous frame was due
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Handles a seek request.  Flushes the decoder, moves the extractor to the sync frame
+     * at or before the target, and arranges for frames before the target to be discarded.
+     */
+    private void doSeek(FrameCallback frameCallback) {
+        long targetUsec;
+        File sourceFile;
+        synchronized (mCodecLock) {
+            targetUsec = mSeekRequestUsec;
+            mSeekRequestUsec = -1;
+        }
+        synchronized (mInputLock) {
+            sourceFile = mSourceFile;
+        }
+        KeyframeIndex keyframeIndex;
+        try {
+            keyframeIndex = KeyframeIndex.get(sourceFile);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        long syncUsec = keyframeIndex.getSyncTimeBefore(targetUsec);
+        if (VERBOSE) Log.d(TAG, "seek to " + targetUsec + ", starting from " + syncUsec);
+
+        flushAndSeek(syncUsec);
+        synchronized (mInputLock) {
+            mDiscardUntilUsec = targetUsec + mPtsOffsetUsec;
+        }
+        synchronized (mCodecLock) {
+            if (mPaused && mStepFrames == 0) {
+                // Scrubbing while paused.  Show the frame we seeked to.
+                mStepFrames = 1;
+            }
+        }
+        if (frameCallback != null) {
+            // Let the pacing code know the next frame doesn't follow the previous one.
+            frameCallback.resync();
+        }
+    }
+
+    /**
+     * Flushes the decoder and moves the extractor back to the start of the file.
+     */
+    private void rewind() {
+        mDiscardUntilUsec = -1;
+        flushAndSeek(0);
+    }
+
+    /**
+     * Flushes the decoder and moves the extractor to the sync frame at or before the
+     * specified time.
+     */
+    private void flushAndSeek(long timeUsec) {
+        synchronized (mInputLock) {
+            mCurrent.extractor.seekTo(timeUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            if (mCurrent.hasPrefetched()) {
+                mCurrent.dropPrefetched();
+            }
+            mInputDone = false;
+            mParkedInputIndex = -1;     // flush() takes the buffer back
+            synchronized (mCodecLock) {
+                mDecoder.flush();   // reset decoder state
+                if (mCodecHandler != null) {
+                    // Flushing returns every buffer to the codec, so anything still queued
+                    // up for us is stale.  In async mode the codec stays idle until
+                    // restarted.
+                    mPendingCount = 0;
+                    mDecoder.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets up async mode.  Callbacks arrive on the specified handler's thread.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void setDecoderCallback(MediaCodec decoder, Handler handler) {
+        decoder.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                // Reading the sample may mean file I/O, so we do that under mInputLock,
+                // and only check the decoder state under mCodecLock.
+                synchronized (mInputLock) {
+                    synchronized (mCodecLock) {
+                        if (!mCodecStarted || codec != mDecoder) {
+                            // Stopping or switching decoders.
+                            return;
+                        }
+                    }
+                    if (mInputDone) {
+                        // Out of input.  If we rewind, the buffer will come back to us.
+                        return;
                     }
-                    decoder.releaseOutputBuffer(decoderStatus, doRender);
-                    if (doRender && frameCallback != null) {
-                        frameCallback.postRender();
+                    if (!queueInputSample(index, codec.getInputBuffer(index))) {
+                        mParkedInputIndex = index;      // retryParkedInput() picks it up
                     }
+                }
+            }
 
-                    if (doLoop) {
-                        Log.d(TAG, "Reached EOS, looping");
-                        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                        inputDone = false;
-                        decoder.flush();    // reset decoder state
-                        frameCallback.loopReset();
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                                @NonNull MediaCodec.BufferInfo info) {
+                synchronized (mCodecLock) {
+                    if (!mCodecStarted || codec != mDecoder) {
+                        return;
+                    }
+                    if (mPendingCount == mPendingIndex.length) {
+                        growPendingQueue();
+                    }
+                    int slot = (mPendingHead + mPendingCount) % mPendingIndex.length;
+                    mPendingIndex[slot] = index;
+                    if (mPendingInfo[slot] == null) {
+                        mPendingInfo[slot] = new MediaCodec.BufferInfo();
                     }
+                    mPendingInfo[slot].set(info.offset, info.size, info.presentationTimeUs,
+                            info.flags);
+                    mPendingCount++;
+                    mCodecLock.notifyAll();
                 }
             }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec,
+                                @NonNull MediaCodec.CodecException e) {
+                Log.w(TAG, "decoder error", e);
+                synchronized (mCodecLock) {
+                    mCodecError = e;
+                    mCodecLock.notifyAll();
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec,
+                                              @NonNull MediaFormat format) {
+                if (VERBOSE) Log.d(TAG, "decoder output format changed: " + format);
+                if (codec == mDecoder) {
+                    mYuvFormat = null;      // look again on the next frame
+                }
+            }
+        }, handler);
+    }
+
+    /**
+     * Offers the parked input buffer to the decoder again, now that the next movie has
+     * finished opening.  Runs on the codec thread.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void retryParkedInput() {
+        synchronized (mInputLock) {
+            int index = mParkedInputIndex;
+            if (index < 0) {
+                return;
+            }
+            MediaCodec decoder;
+            synchronized (mCodecLock) {
+                if (!mCodecStarted) {
+                    return;
+                }
+                decoder = mDecoder;
+            }
+            mParkedInputIndex = -1;
+            if (!queueInputSample(index, decoder.getInputBuffer(index))) {
+                mParkedInputIndex = index;
+            }
+        }
+    }
+
+    /**
+     * Doubles the size of the pending output queue.  Should only happen once or twice, since
+     * the codec only has so many output buffers.
+     */
+    private void growPendingQueue() {
+        int oldLen = mPendingIndex.length;
+        int[] newIndex = new int[oldLen * 2];
+        MediaCodec.BufferInfo[] newInfo = new MediaCodec.BufferInfo[oldLen * 2];
+        for (int i = 0; i < mPendingCount; i++) {
+            newIndex[i] = mPendingIndex[(mPendingHead + i) % oldLen];
+            newInfo[i] = mPendingInfo[(mPendingHead + i) % oldLen];
         }
+        mPendingIndex = newIndex;
+        mPendingInfo = newInfo;
+        mPendingHead = 0;
     }
 
     /**
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.graphics.ImageFormat;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A movie file that has been opened for playback: an extractor with the video track
+ * selected, plus (optionally) the first GOP read into memory and a decoder that's ready
+ * to go.
+ * <p>
+ * MoviePlayer builds one of these for the next movie in its playlist on a helper thread, so
+ * switching movies doesn't have to wait for file I/O or codec startup.  Once handed over,
+ * it's used by the player's decode thread(s) only.
+ */
+class MovieSource {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // Limits on how much we'll read ahead.  The first GOP is usually much smaller.
+    private static final int MAX_PREFETCH_SAMPLES = 300;
+    private static final int MAX_PREFETCH_BYTES = 16 * 1024 * 1024;
+
+    final File file;
+    final MediaExtractor extractor;
+    final int trackIndex;
+    final MediaFormat format;
+    private final boolean mIsAvc;
+
+    // Prefetched samples, in decode order.
+    private ByteBuffer[] mSamples;
+    private long[] mSampleTimes;
+    private int mSampleCount;
+    private int mNextSample;
+    private long mFirstPtsUsec;
+
+    // Decoder waiting to take over the output Surface.  API 23+ only.
+    private MediaCodec mStandbyDecoder;
+    private ImageReader mStandbySurface;
+
+    private MovieSource(File file, MediaExtractor extractor, int trackIndex) {
+        this.file = file;
+        this.extractor = extractor;
+        this.trackIndex = trackIndex;
+        this.format = extractor.getTrackFormat(trackIndex);
+        mIsAvc = "video/avc".equals(format.getString(MediaFormat.KEY_MIME));
+    }
+
+    /**
+     * Opens a movie file and selects its video track.
+     */
+    public static MovieSource open(File file) throws IOException {
+        // The MediaExtractor error messages aren't very useful.  Check to see if the input
+        // file exists so we can throw a better one if it's not there.
+        if (!file.canRead()) {
+            throw new FileNotFoundException("Unable to read " + file);
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.toString());
+            int trackIndex = MoviePlayer.selectTrack(extractor);
+            if (trackIndex < 0) {
+                throw new RuntimeException("No video track found in " + file);
+            }
+            extractor.selectTrack(trackIndex);
+            MovieSource source = new MovieSource(file, extractor, trackIndex);
+            extractor = null;
+            return source;
+        } finally {
+            if (extractor != null) {
+                extractor.release();
+            }
+        }
+    }
+
+    /**
+     * Reads samples up to (but not including) the second sync frame into memory.  The
+     * extractor is left positioned after them.
+     */
+    public void prefetchFirstGop() {
+        int maxSize;
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            maxSize = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        } else {
+            // Generous upper bound on a compressed frame.
+            maxSize = format.getInteger(MediaFormat.KEY_WIDTH) *
+                    format.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+        }
+        ByteBuffer scratch = ByteBuffer.allocateDirect(maxSize);
+        mSamples = new ByteBuffer[16];
+        mSampleTimes = new long[16];
+        mSampleCount = 0;
+        mFirstPtsUsec = Long.MAX_VALUE;
+
+        int totalBytes = 0;
+        while (mSampleCount < MAX_PREFETCH_SAMPLES && totalBytes < MAX_PREFETCH_BYTES) {
+            if (mSampleCount > 0 &&
+                    (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                break;      // start of the next GOP
+            }
+            int size = extractor.readSampleData(scratch, 0);
+            if (size < 0) {
+                break;
+            }
+            scratch.limit(size);
+            scratch.position(0);
+            ByteBuffer sample = ByteBuffer.allocate(size);
+            sample.put(scratch);
+            sample.flip();
+
+            if (mSampleCount == mSamples.length) {
+                mSamples = Arrays.copyOf(mSamples, mSampleCount * 2);
+                mSampleTimes = Arrays.copyOf(mSampleTimes, mSampleCount * 2);
+            }
+            long pts = extractor.getSampleTime();
+            mSamples[mSampleCount] = sample;
+            mSampleTimes[mSampleCount] = pts;
+            mSampleCount++;
+            mFirstPtsUsec = Math.min(mFirstPtsUsec, pts);
+            totalBytes += size;
+            extractor.advance();
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "prefetched " + mSampleCount + " samples (" + totalBytes +
+                    " bytes) from " + file.getName());
+        }
+    }
+
+    /**
+     * Returns true if there are prefetched samples we haven't handed out yet.
+     */
+    public boolean hasPrefetched() {
+        return mNextSample < mSampleCount;
+    }
+
+    /**
+     * Returns the presentation time of the next prefetched sample.
+     */
+    public long getPrefetchedTime() {
+        return mSampleTimes[mNextSample];
+    }
+
+    /**
+     * Copies the next prefetched sample into "buf", starting at offset 0.
+     *
+     * @return the size of the sample.
+     */
+    public int readPrefetched(ByteBuffer buf) {
+        ByteBuffer sample = mSamples[mNextSample];
+        mSamples[mNextSample++] = null;     // done with it
+        buf.clear();
+        buf.put(sample);
+        return sample.limit();
+    }
+
+    /**
+     * Discards the rest of the prefetched samples, e.g. because we seeked away.
+     */
+    public void dropPrefetched() {
+        Arrays.fill(mSamples, null);
+        mNextSample = mSampleCount = 0;
+    }
+
+    /**
+     * Returns the earliest presentation time in the first GOP, or 0 if nothing was
+     * prefetched.
+     */
+    public long getFirstPtsUsec() {
+        return mSampleCount > 0 ? mFirstPtsUsec : 0;
+    }
+
+    /**
+     * Returns true if the sample in "buf" (starting at offset 0) is a frame that no other
+     * frame refers to, so it can be skipped without affecting the rest of the stream.
+     * <p>
+     * Only AVC is handled: we check that the sample holds at least one slice, and that every
+     * slice has nal_ref_idc == 0.  (In HEVC, whether a picture is referenced depends on the
+     * temporal layer structure, which we'd have to track across samples.)
+     */
+    public boolean isDisposable(ByteBuffer buf, int size) {
+        if (!mIsAvc) {
+            return false;
+        }
+        boolean sawSlice = false;
+        int zeroes = 0;
+        for (int i = 0; i < size - 1; i++) {
+            byte b = buf.get(i);
+            if (b == 0) {
+                zeroes++;
+                continue;
+            }
+            if (b == 1 && zeroes >= 2) {
+                // Start code; the NAL unit header follows.
+                int header = buf.get(i + 1) & 0xff;
+                int nalType = header & 0x1f;
+                if (nalType >= 1 && nalType <= 5) {
+                    if ((header & 0x60) != 0) {
+                        return false;       // nal_ref_idc != 0
+                    }
+                    sawSlice = true;
+                }
+                i++;
+            }
+            zeroes = 0;
+        }
+        return sawSlice;
+    }
+
+    /**
+     * Creates and starts a decoder for this movie, with its output going to a private
+     * Surface until {@link #takeStandbyDecoder} hands it the real one.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public void prepareStandbyDecoder() throws IOException {
+        mStandbySurface = ImageReader.newInstance(format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT), ImageFormat.PRIVATE, 2);
+        mStandbyDecoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        mStandbyDecoder.configure(format, mStandbySurface.getSurface(), null, 0);
+        mStandbyDecoder.start();
+    }
+
+    /**
+     * Returns true if a decoder is waiting in {@link #takeStandbyDecoder}.
+     */
+    public boolean hasStandbyDecoder() {
+        return mStandbyDecoder != null;
+    }
+
+    /**
+     * Points the standby decoder at the output Surface, and hands it over.  The Surface
+     * must not be connected to another producer.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public MediaCodec takeStandbyDecoder(Surface outputSurface) {
+        MediaCodec decoder = mStandbyDecoder;
+        mStandbyDecoder = null;
+        decoder.setOutputSurface(outputSurface);
+        mStandbySurface.close();
+        mStandbySurface = null;
+        return decoder;
+    }
+
+    /**
+     * Releases the extractor and standby decoder.  Don't call this after the extractor has
+     * been handed off to a player.
+     */
+    public void release() {
+        if (mStandbyDecoder != null) {
+            mStandbyDecoder.stop();
+            mStandbyDecoder.release();
+            mStandbyDecoder = null;
+        }
+        if (mStandbySurface != null) {
+            mStandbySurface.close();
+            mStandbySurface = null;
+        }
+        extractor.release();
+    }
+}
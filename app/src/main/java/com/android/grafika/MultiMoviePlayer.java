@@ -0,0 +1,371 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plays several movies at once, each to its own Surface, against a single clock.
+ * <p>
+ * Each movie gets its own MoviePlayer and decode thread, but instead of pacing itself the way
+ * SpeedControlCallback does, every stream schedules its frames on a shared timeline: the frame
+ * with time stamp T (relative to the movie's first frame) is released at clock start + T.
+ * The clock doesn't start until every stream has its first frame decoded, so the streams start
+ * together, and since each frame's deadline is absolute, a stream that falls behind catches
+ * up rather than drifting.  Frames with the same time stamp go out together.
+ * <p>
+ * For each stream we record how late frames were relative to their deadline.  Playing
+ * more and more streams until frames start showing up late is a simple way to find out
+ * how many concurrent decodes a device can sustain at a given frame rate.
+ * <p>
+ * Streams that loop are placed back on the timeline one frame after their last frame.
+ * A pause or seek on an individual stream re-anchors that stream to the current clock time.
+ * <p>
+ * The shared clock is the system monotonic clock unless {@link #setClock} says otherwise,
+ * e.g. an {@link AudioClock} to play the streams in step with a soundtrack.
+ */
+public class MultiMoviePlayer {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // A frame is counted as late if it goes out more than half a 60Hz refresh after its
+    // deadline.
+    public static final long LATE_THRESHOLD_USEC = 1000000 / 120;
+
+    private static final long DEFAULT_FRAME_DURATION_USEC = 1000000 / 30;
+
+    private final Stream[] mStreams;
+    private boolean mLoop;
+    private MediaClock mClock = MonotonicClock.getInstance();
+
+    // Shared clock.  Guarded by mClockLock.
+    private final Object mClockLock = new Object();
+    private int mArrivedCount;
+    private long mClockStartUsec = -1;      // mClock time of timeline position 0
+    private volatile boolean mIsStopRequested;
+
+    /**
+     * Lateness statistics for one stream.  Times are in microseconds.
+     */
+    public static class StreamStats {
+        public int frameCount;
+        public int lateCount;
+        public long totalLatenessUsec;
+        public long maxLatenessUsec;
+
+        void set(StreamStats other) {
+            frameCount = other.frameCount;
+            lateCount = other.lateCount;
+            totalLatenessUsec = other.totalLatenessUsec;
+            maxLatenessUsec = other.maxLatenessUsec;
+        }
+
+        /**
+         * Returns the mean lateness of all frames, late or not.
+         */
+        public long getMeanLatenessUsec() {
+            return frameCount == 0 ? 0 : totalLatenessUsec / frameCount;
+        }
+
+        @Override
+        public String toString() {
+            return "frames=" + frameCount + " late=" + lateCount + " meanLate=" +
+                    getMeanLatenessUsec() + "us maxLate=" + maxLatenessUsec + "us";
+        }
+    }
+
+    /**
+     * Prepares to play the movies.  Each Surface belongs to the corresponding file; the
+     * player takes ownership of the Surfaces, and releases them when playback ends.
+     */
+    public MultiMoviePlayer(File[] files, Surface[] surfaces) {
+        if (files.length != surfaces.length || files.length == 0) {
+            throw new IllegalArgumentException("need one surface per file");
+        }
+        mStreams = new Stream[files.length];
+        for (int i = 0; i < files.length; i++) {
+            mStreams[i] = new Stream(i, files[i], surfaces[i]);
+        }
+    }
+
+    /**
+     * Sets the loop mode.  If true, each movie loops forever.  Must be called before
+     * {@link #start()}.
+     */
+    public void setLoopMode(boolean loopMode) {
+        mLoop = loopMode;
+    }
+
+    /**
+     * Sets the clock that the shared timeline runs on.  Must be called before
+     * {@link #start()}.
+     */
+    public void setClock(MediaClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Returns the number of streams.
+     */
+    public int getStreamCount() {
+        return mStreams.length;
+    }
+
+    /**
+     * Starts a decode thread for every stream.
+     */
+    public void start() {
+        for (Stream stream : mStreams) {
+            stream.mThread = new Thread(stream, "Movie Player " + stream.mOrdinal);
+            stream.mThread.start();
+        }
+    }
+
+    /**
+     * Asks all streams to stop.  Returns without waiting for playback to halt.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void requestStop() {
+        mIsStopRequested = true;
+        synchronized (mClockLock) {
+            mClockLock.notifyAll();
+        }
+        for (Stream stream : mStreams) {
+            synchronized (stream) {
+                if (stream.mPlayer != null) {
+                    stream.mPlayer.requestStop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for all decode threads to finish.
+     */
+    public void waitForStop() {
+        for (Stream stream : mStreams) {
+            if (stream.mThread == null) {
+                continue;
+            }
+            while (true) {
+                try {
+                    stream.mThread.join();
+                    break;
+                } catch (InterruptedException ie) {
+                    // discard
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the lateness statistics for a stream into "stats".
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void getStats(int stream, StreamStats stats) {
+        Stream s = mStreams[stream];
+        synchronized (s.mStats) {
+            stats.set(s.mStats);
+        }
+    }
+
+    /**
+     * Logs the lateness statistics for every stream.
+     */
+    public void logStats() {
+        StreamStats stats = new StreamStats();
+        for (int i = 0; i < mStreams.length; i++) {
+            getStats(i, stats);
+            Log.d(TAG, "stream " + i + " (" + mStreams[i].mFile.getName() + "): " + stats);
+        }
+    }
+
+    /**
+     * Called by each stream when it has its first frame ready, or if it gives up before
+     * getting one.  If "wait" is set, blocks until all streams have arrived, then returns
+     * the clock start time.  Returns -1 if we're stopping.
+     */
+    private long arrive(boolean wait) {
+        synchronized (mClockLock) {
+            mArrivedCount++;
+            if (mArrivedCount == mStreams.length) {
+                mClockStartUsec = mClock.nanoTime() / 1000;
+                Log.d(TAG, "all " + mStreams.length + " streams ready, starting clock");
+                mClockLock.notifyAll();
+            }
+            while (wait && mClockStartUsec < 0 && !mIsStopRequested) {
+                try {
+                    mClockLock.wait();
+                } catch (InterruptedException ie) {
+                    // discard
+                }
+            }
+            return mClockStartUsec;
+        }
+    }
+
+    /**
+     * One movie, its decode thread, and its view of the shared clock.
+     */
+    private class Stream implements Runnable, MoviePlayer.FrameCallback {
+        private final int mOrdinal;
+        private final File mFile;
+        private final Surface mSurface;
+        private final StreamStats mStats = new StreamStats();
+        private Thread mThread;
+        private MoviePlayer mPlayer;    // guarded by "this"
+
+        // Only used on the decode thread.
+        private boolean mArrived;
+        private long mClockStartUsec;
+        private long mFirstPtsUsec = -1;
+        private long mTimelineOffsetUsec;   // added to (pts - first pts)
+        private long mPrevTimelineUsec = -1;
+        private long mFrameDurationUsec = DEFAULT_FRAME_DURATION_USEC;
+        private boolean mLoopReset;
+        private boolean mResync;
+
+        Stream(int ordinal, File file, Surface surface) {
+            mOrdinal = ordinal;
+            mFile = file;
+            mSurface = surface;
+        }
+
+        @Override
+        public void run() {
+            try {
+                MoviePlayer player = new MoviePlayer(mFile, mSurface, this);
+                player.setLoopMode(mLoop);
+                synchronized (this) {
+                    mPlayer = player;
+                }
+                if (!mIsStopRequested) {
+                    player.play();
+                }
+            } catch (IOException ioe) {
+                Log.e(TAG, "movie playback failed: " + mFile, ioe);
+            } finally {
+                if (!mArrived) {
+                    // Don't hold the others up.
+                    mArrived = true;
+                    arrive(false);
+                }
+                mSurface.release();
+                synchronized (mStats) {
+                    Log.d(TAG, "stream " + mOrdinal + " stopping: " + mStats);
+                }
+            }
+        }
+
+        // runs on decode thread
+        @Override
+        public void preRender(long presentationTimeUsec) {
+            if (!mArrived) {
+                mArrived = true;
+                mFirstPtsUsec = presentationTimeUsec;
+                mClockStartUsec = arrive(true);
+                if (mClockStartUsec < 0) {
+                    return;     // stopping
+                }
+            }
+
+            long timelineUsec = presentationTimeUsec - mFirstPtsUsec + mTimelineOffsetUsec;
+            if (mLoopReset) {
+                // Back at the start of the movie.  Carry on one frame after the last one.
+                mLoopReset = false;
+                mTimelineOffsetUsec += mPrevTimelineUsec + mFrameDurationUsec - timelineUsec;
+                timelineUsec = mPrevTimelineUsec + mFrameDurationUsec;
+            } else if (mResync) {
+                // Jumped somewhere.  Show this frame now, and carry on from here.
+                mResync = false;
+                long nowTimelineUsec = mClock.nanoTime() / 1000 - mClockStartUsec;
+                mTimelineOffsetUsec += nowTimelineUsec - timelineUsec;
+                timelineUsec = nowTimelineUsec;
+            } else if (mPrevTimelineUsec >= 0 && timelineUsec > mPrevTimelineUsec) {
+                mFrameDurationUsec = timelineUsec - mPrevTimelineUsec;
+            }
+            mPrevTimelineUsec = timelineUsec;
+
+            long deadlineUsec = mClockStartUsec + timelineUsec;
+            long nowUsec = mClock.nanoTime() / 1000;
+            while (nowUsec < deadlineUsec - 100 && !mIsStopRequested) {
+                // Wake up at least every half second so we notice stop requests.  This also
+                // keeps us from waiting forever on a clock that has stopped.
+                long sleepTimeUsec = Math.min(deadlineUsec - nowUsec, 500000);
+                mClock.sleep(sleepTimeUsec * 1000);
+                nowUsec = mClock.nanoTime() / 1000;
+            }
+
+            long latenessUsec = Math.max(nowUsec - deadlineUsec, 0);
+            synchronized (mStats) {
+                mStats.frameCount++;
+                mStats.totalLatenessUsec += latenessUsec;
+                if (latenessUsec > LATE_THRESHOLD_USEC) {
+                    mStats.lateCount++;
+                }
+                mStats.maxLatenessUsec = Math.max(mStats.maxLatenessUsec, latenessUsec);
+            }
+            if (VERBOSE && latenessUsec > LATE_THRESHOLD_USEC) {
+                Log.d(TAG, "stream " + mOrdinal + " frame " + presentationTimeUsec +
+                        " late by " + latenessUsec + "us");
+            }
+        }
+
+        // runs on decode thread
+        @Override
+        public void postRender() {
+        }
+
+        // runs on decode thread
+        @Override
+        public void resync() {
+            if (mArrived) {
+                mResync = true;
+                mLoopReset = false;
+            }
+        }
+
+        // runs on decode thread
+        @Override
+        public void loopReset() {
+            mLoopReset = true;
+        }
+
+        @Override
+        public void setPlaybackRate(float rate) {
+            // The shared clock always runs at normal speed.
+            Log.w(TAG, "HEY: ignoring playback rate " + rate + " for stream " + mOrdinal);
+        }
+
+        @Override
+        public void requestStop() {
+            // The wait in preRender() checks mIsStopRequested, which is set before the players
+            // are told to stop.
+        }
+
+        @Override
+        public long getRenderTimeNsec() {
+            return 0;
+        }
+    }
+}
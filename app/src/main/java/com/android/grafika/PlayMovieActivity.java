@@ -17,8 +17,10 @@
 package com.android.grafika;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
@@ -29,6 +31,8 @@ import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
 import android.widget.Spinner;
 
 import java.io.File;
@@ -43,19 +47,33 @@ import java.io.IOException;
  * the same, but here we can handle the aspect ratio adjustment with a simple matrix,
  * rather than a custom layout.
  * <p>
+ * A strip of thumbnails from the selected movie is shown above the player.
+ * <p>
+ * With "play all" checked, every movie is played back to back, starting with the selected
+ * one.  The player opens the next file while the current one is playing, so there's no gap
+ * between them.
+ * <p>
  * TODO: investigate crash when screen is rotated while movie is playing (need
  * to have onPause() wait for playback to stop)
  */
 public class PlayMovieActivity extends Activity implements OnItemSelectedListener,
-        TextureView.SurfaceTextureListener, MoviePlayer.PlayerFeedback {
+        TextureView.SurfaceTextureListener, MoviePlayer.PlayerFeedback,
+        ThumbnailService.Callback {
     private static final String TAG = MainActivity.TAG;
 
+    private static final int THUMB_COUNT = 5;
+    private static final int THUMB_WIDTH = 128;
+    private static final int THUMB_HEIGHT = 72;
+
     private TextureView mTextureView;
     private String[] mMovieFiles;
     private int mSelectedMovie;
     private boolean mShowStopLabel;
     private MoviePlayer.PlayTask mPlayTask;
+    private SpeedControlCallback mSpeedCallback;
     private boolean mSurfaceTextureReady = false;
+    private ThumbnailService mThumbnailService;
+    private ImageView[] mThumbViews;
 
     private final Object mStopper = new Object();   // used to signal stop
 
@@ -79,9 +97,32 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
         spinner.setAdapter(adapter);
         spinner.setOnItemSelectedListener(this);
 
+        LinearLayout strip = (LinearLayout) findViewById(R.id.movieThumb_strip);
+        mThumbViews = new ImageView[THUMB_COUNT];
+        for (int i = 0; i < THUMB_COUNT; i++) {
+            mThumbViews[i] = new ImageView(this);
+            strip.addView(mThumbViews[i], THUMB_WIDTH, THUMB_HEIGHT);
+        }
+
+        // Warm up the cache for the rest of the list.  The selected file gets requested by
+        // onItemSelected(), which the spinner calls once it's laid out.
+        mThumbnailService = new ThumbnailService(getCacheDir(), THUMB_WIDTH, THUMB_HEIGHT,
+                2, 4 * 1024 * 1024, 16 * 1024 * 1024);
+        for (int i = mMovieFiles.length - 1; i > 0; i--) {
+            mThumbnailService.requestStrip(new File(getFilesDir(), mMovieFiles[i]),
+                    THUMB_COUNT, this);
+        }
+
         updateControls();
     }
 
+    @Override
+    protected void onDestroy() {
+        Log.d(TAG, "PlayMovieActivity onDestroy: thumbnails " + mThumbnailService.getStats());
+        mThumbnailService.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     protected void onResume() {
         Log.d(TAG, "PlayMovieActivity onResume");
@@ -102,6 +143,10 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
             stopPlayback();
             mPlayTask.waitForStop();
         }
+        if (isFinishing()) {
+            // Keep idle decoders across a rotation, but not after we leave.
+            DecoderPool.getInstance().clear();
+        }
     }
 
     @Override
@@ -141,6 +186,12 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
         mSelectedMovie = spinner.getSelectedItemPosition();
 
         Log.d(TAG, "onItemSelected: " + mSelectedMovie + " '" + mMovieFiles[mSelectedMovie] + "'");
+
+        for (ImageView view : mThumbViews) {
+            view.setImageBitmap(null);
+        }
+        mThumbnailService.requestStrip(new File(getFilesDir(), mMovieFiles[mSelectedMovie]),
+                THUMB_COUNT, this);
     }
 
     @Override
@@ -169,17 +220,31 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
                 // TODO: consider changing this to be "free running" mode
                 callback.setFixedPlaybackRate(60);
             }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                callback.setVsyncPacing(true);
+            }
+            mSpeedCallback = callback;
             SurfaceTexture st = mTextureView.getSurfaceTexture();
             Surface surface = new Surface(st);
+            File[] playlist;
+            if (((CheckBox) findViewById(R.id.playAll_checkbox)).isChecked()) {
+                playlist = new File[mMovieFiles.length];
+                for (int i = 0; i < playlist.length; i++) {
+                    playlist[i] = new File(getFilesDir(),
+                            mMovieFiles[(mSelectedMovie + i) % mMovieFiles.length]);
+                }
+            } else {
+                playlist = new File[] { new File(getFilesDir(), mMovieFiles[mSelectedMovie]) };
+            }
             MoviePlayer player = null;
             try {
-                player = new MoviePlayer(
-                        new File(getFilesDir(), mMovieFiles[mSelectedMovie]), surface, callback);
+                player = new MoviePlayer(playlist, surface, callback);
             } catch (IOException ioe) {
                 Log.e(TAG, "Unable to play movie", ioe);
                 surface.release();
                 return;
             }
+            player.setDecoderPool(DecoderPool.getInstance());
             adjustAspectRatio(player.getVideoWidth(), player.getVideoHeight());
 
             mPlayTask = new MoviePlayer.PlayTask(player, this);
@@ -202,9 +267,19 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
         }
     }
 
+    @Override   // ThumbnailService.Callback
+    public void onThumbnail(File file, int index, Bitmap bitmap) {
+        // Ignore strips for files other than the current one; they're just filling the cache.
+        if (mMovieFiles.length > 0 &&
+                file.getName().equals(mMovieFiles[mSelectedMovie])) {
+            mThumbViews[index].setImageBitmap(bitmap);
+        }
+    }
+
     @Override   // MoviePlayer.PlayerFeedback
     public void playbackStopped() {
         Log.d(TAG, "playback stopped");
+        mSpeedCallback.logStats();
         mShowStopLabel = false;
         mPlayTask = null;
         updateControls();
@@ -260,5 +335,7 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
         check.setEnabled(!mShowStopLabel);
         check = (CheckBox) findViewById(R.id.loopPlayback_checkbox);
         check.setEnabled(!mShowStopLabel);
+        check = (CheckBox) findViewById(R.id.playAll_checkbox);
+        check.setEnabled(!mShowStopLabel);
     }
 }
@@ -77,6 +77,7 @@ public class PlayMovieSurfaceActivity extends Activity implements OnItemSelected
     private int mSelectedMovie;
     private boolean mShowStopLabel;
     private MoviePlayer.PlayTask mPlayTask;
+    private SpeedControlCallback mSpeedCallback;
     private boolean mSurfaceHolderReady = false;
 
     /**
@@ -130,6 +131,10 @@ public class PlayMovieSurfaceActivity extends Activity implements OnItemSelected
             stopPlayback();
             mPlayTask.waitForStop();
         }
+        if (isFinishing()) {
+            // Keep idle decoders across a rotation, but not after we leave.
+            DecoderPool.getInstance().clear();
+        }
     }
 
     @Override
@@ -189,6 +194,7 @@ public class PlayMovieSurfaceActivity extends Activity implements OnItemSelected
 
             Log.d(TAG, "starting movie");
             SpeedControlCallback callback = new SpeedControlCallback();
+            mSpeedCallback = callback;
             SurfaceHolder holder = mSurfaceView.getHolder();
             Surface surface = holder.getSurface();
 
@@ -206,6 +212,7 @@ public class PlayMovieSurfaceActivity extends Activity implements OnItemSelected
                 return;
             }
 
+            player.setDecoderPool(DecoderPool.getInstance());
             AspectFrameLayout layout = (AspectFrameLayout) findViewById(R.id.playMovie_afl);
             int width = player.getVideoWidth();
             int height = player.getVideoHeight();
@@ -232,6 +239,7 @@ public class PlayMovieSurfaceActivity extends Activity implements OnItemSelected
     @Override   // MoviePlayer.PlayerFeedback
     public void playbackStopped() {
         Log.d(TAG, "playback stopped");
+        mSpeedCallback.logStats();
         mShowStopLabel = false;
         mPlayTask = null;
         updateControls();
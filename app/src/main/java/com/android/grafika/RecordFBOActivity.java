@@ -159,7 +159,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         File outputFile = new File(getFilesDir(), "fbo-gl-recording.mp4");
         SurfaceView sv = (SurfaceView) findViewById(R.id.fboActivity_surfaceView);
         mRenderThread = new RenderThread(sv.getHolder(), new ActivityHandler(this), outputFile,
-                MiscUtils.getDisplayRefreshNsec(this));
+                MiscUtils.getDisplayRefreshNsec(this), MonotonicClock.getInstance());
         mRenderThread.setName("RecordFBO GL render");
         mRenderThread.start();
         mRenderThread.waitUntilReady();
@@ -433,7 +433,8 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
 
         private final float[] mIdentityMatrix;
 
-        // Previous frame time.
+        // Time source for animation and recorded frames, and previous frame time.
+        private final MediaClock mClock;
         private long mPrevTimeNanos;
 
         // FPS / drop counter.
@@ -463,11 +464,12 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
          * Pass in the SurfaceView's SurfaceHolder.  Note the Surface may not yet exist.
          */
         public RenderThread(SurfaceHolder holder, ActivityHandler ahandler, File outputFile,
-                            long refreshPeriodNs) {
+                            long refreshPeriodNs, MediaClock clock) {
             mSurfaceHolder = holder;
             mActivityHandler = ahandler;
             mOutputFile = outputFile;
             mRefreshPeriodNanos = refreshPeriodNs;
+            mClock = clock;
 
             mVideoRect = new Rect();
 
@@ -836,12 +838,13 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         /**
          * Advance state and draw frame in response to a vsync event.
          */
-        private void doFrame(long timeStampNanos) {
+        private void doFrame(long frameTimeNanos) {
             // If we're not keeping up 60fps -- maybe something in the system is busy, maybe
             // recording is too expensive, maybe the CPU frequency governor thinks we're
             // not doing and wants to drop the clock frequencies -- we need to drop frames
-            // to catch up.  The "timeStampNanos" value is based on the system monotonic
-            // clock, as is System.nanoTime(), so we can compare the values directly.
+            // to catch up.  The frame time is based on the system monotonic clock; we
+            // convert it to our MediaClock's time base so we can compare it with the
+            // clock's current time, and so the recording follows that clock.
             //
             // Our clumsy collision detection isn't sophisticated enough to deal with large
             // time gaps, but it's nearly cost-free, so we go ahead and do the computation
@@ -851,9 +854,10 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             // by recording at ~30fps instead of the display refresh rate.  As a quick hack
             // we just record every-other frame, using a "recorded previous" flag.
 
+            long timeStampNanos = mClock.fromSystemNanos(frameTimeNanos);
             update(timeStampNanos);
 
-            long diff = System.nanoTime() - timeStampNanos;
+            long diff = mClock.nanoTime() - timeStampNanos;
             long max = mRefreshPeriodNanos - 2000000;   // if we're within 2ms, don't bother
             if (diff > max) {
                 // too much, drop a frame
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemSelectedListener;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.Spinner;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plays a movie backward, from the end to the start, with ReversePlayer.  Output goes to a
+ * SurfaceView.
+ * <p>
+ * Handy for looking back through a "continuous capture" recording.  ReversePlayer does
+ * its own letterboxing, so the SurfaceView just fills the space below the controls.
+ */
+public class ReversePlayActivity extends Activity implements OnItemSelectedListener,
+        SurfaceHolder.Callback {
+    private static final String TAG = MainActivity.TAG;
+
+    private SurfaceView mSurfaceView;
+    private String[] mMovieFiles;
+    private int mSelectedMovie;
+    private boolean mSurfaceHolderReady = false;
+
+    private ReversePlayer mPlayer;
+    private Thread mPlayThread;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_reverse_play);
+
+        mSurfaceView = (SurfaceView) findViewById(R.id.reversePlay_surface);
+        mSurfaceView.getHolder().addCallback(this);
+
+        // Populate file-selection spinner.
+        Spinner spinner = (Spinner) findViewById(R.id.playMovieFile_spinner);
+        mMovieFiles = MiscUtils.getFiles(getFilesDir(), "*.mp4");
+        ArrayAdapter<String> adapter = new ArrayAdapter<String>(this,
+                android.R.layout.simple_spinner_item, mMovieFiles);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinner.setAdapter(adapter);
+        spinner.setOnItemSelectedListener(this);
+
+        updateControls();
+    }
+
+    @Override
+    protected void onPause() {
+        Log.d(TAG, "ReversePlayActivity onPause");
+        super.onPause();
+        // The player renders to our Surface, which is about to go away, so wait for it to
+        // stop before we return.
+        if (mPlayer != null) {
+            mPlayer.requestStop();
+            while (true) {
+                try {
+                    mPlayThread.join();
+                    break;
+                } catch (InterruptedException ie) {
+                    // discard
+                }
+            }
+            playbackStopped();
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        Log.d(TAG, "surfaceCreated");
+        mSurfaceHolderReady = true;
+        updateControls();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        Log.d(TAG, "surfaceChanged fmt=" + format + " size=" + width + "x" + height);
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        Log.d(TAG, "Surface destroyed");
+        mSurfaceHolderReady = false;
+    }
+
+    /*
+     * Called when the movie Spinner gets touched.
+     */
+    @Override
+    public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
+        Spinner spinner = (Spinner) parent;
+        mSelectedMovie = spinner.getSelectedItemPosition();
+
+        Log.d(TAG, "onItemSelected: " + mSelectedMovie + " '" + mMovieFiles[mSelectedMovie] + "'");
+    }
+
+    @Override
+    public void onNothingSelected(AdapterView<?> parent) {
+    }
+
+    /**
+     * onClick handler for "play"/"stop" button.
+     */
+    public void clickPlayStop(@SuppressWarnings("unused") View unused) {
+        if (mPlayer != null) {
+            Log.d(TAG, "stopping movie");
+            // The play thread updates the controls once it has actually stopped.
+            mPlayer.requestStop();
+            return;
+        }
+
+        Log.d(TAG, "starting movie");
+        Surface surface = mSurfaceView.getHolder().getSurface();
+        final ReversePlayer player;
+        try {
+            player = new ReversePlayer(new File(getFilesDir(), mMovieFiles[mSelectedMovie]),
+                    surface, ReversePlayer.DEFAULT_MEMORY_BUDGET_BYTES);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to play movie", ioe);
+            return;
+        }
+
+        mPlayer = player;
+        mPlayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    player.play(-1);
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                } finally {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mPlayer == player) {
+                                playbackStopped();
+                            }
+                        }
+                    });
+                }
+            }
+        }, "ReversePlayer");
+        mPlayThread.start();
+        updateControls();
+    }
+
+    /**
+     * Cleans up after the play thread exits.
+     */
+    private void playbackStopped() {
+        Log.d(TAG, "playback stopped");
+        mPlayer = null;
+        mPlayThread = null;
+        updateControls();
+    }
+
+    /**
+     * Updates the on-screen controls to reflect the current state of the app.
+     */
+    private void updateControls() {
+        Button play = (Button) findViewById(R.id.play_stop_button);
+        if (mPlayer != null) {
+            play.setText(R.string.stop_button_text);
+        } else {
+            play.setText(R.string.play_button_text);
+        }
+        play.setEnabled(mSurfaceHolderReady && mMovieFiles.length > 0);
+    }
+}
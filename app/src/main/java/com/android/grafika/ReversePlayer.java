@@ -0,0 +1,626 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+
+import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.Texture2dProgram;
+import com.android.grafika.gles.WindowSurface;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Plays the video track from a movie file backward, to a Surface.
+ * <p>
+ * Decoders only go forward, so we work through the movie a chunk at a time.  For each chunk
+ * we seek to a sync frame, decode forward to the end of the chunk, and copy every frame into
+ * a GL texture as it comes out of the decoder.  Then we show the textures in reverse order.
+ * There are two sets of textures: while one chunk is being shown, the chunk before it is
+ * decoded into the other set.  The decoding happens in the gaps while we wait for each
+ * frame's presentation time, so the decoder works in parallel with presentation, and the
+ * next chunk is usually ready by the time we need it.
+ * <p>
+ * Each cached frame is a full-size RGBA texture (about 8MB at 1080p), and the total is
+ * bounded by the memory budget passed to the constructor, split evenly between the two sets.
+ * A chunk normally covers one GOP.  If a GOP has more frames than a set can hold, we keep
+ * only the last frames of the GOP, and decode the GOP from its sync frame again for the
+ * next chunk.  A bigger budget means less redundant decoding.
+ * <p>
+ * We stop feeding the decoder a few samples after the end of the chunk, rather than at the
+ * next sync frame.  This assumes frames are reordered by no more than REORDER_SLACK
+ * samples, which holds for the AVC that Android's encoders produce.
+ * <p>
+ * Frames are paced against the system monotonic clock, or whatever {@link #setClock} says.
+ * <p>
+ * play() creates its own EGL context, so call it from a dedicated thread, and don't render
+ * to the output Surface from anywhere else while it's running.
+ */
+public class ReversePlayer {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** Default limit on texture memory used for cached frames. */
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 128 * 1024 * 1024;
+
+    private static final int REORDER_SLACK = 4;
+    private static final int TIMEOUT_USEC = 5000;
+    private static final long FRAME_WAIT_MSEC = 500;
+
+    private final File mSourceFile;
+    private final Surface mOutputSurface;
+    private final long mMemoryBudgetBytes;
+    private int mVideoWidth;
+    private int mVideoHeight;
+    private MediaClock mClock = MonotonicClock.getInstance();
+
+    // May be set/read by different threads.
+    private volatile boolean mIsStopRequested;
+    private volatile long mSeekRequestUsec = -1;
+    private volatile float mPlaybackRate = 1.0f;
+
+    // Everything below is only used on the play() thread.
+    private EglCore mEglCore;
+    private WindowSurface mWindowSurface;
+    private FullFrameRect mExtRect;         // external texture -> cache
+    private FullFrameRect mTexRect;         // cache -> output
+    private int mExtTextureId;
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mDecoderSurface;
+    private final float[] mSTMatrix = new float[16];
+
+    private MediaExtractor mExtractor;
+    private MediaCodec mDecoder;
+    private ByteBuffer[] mDecoderInputBuffers;
+    private KeyframeIndex mKeyframeIndex;
+    private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    // Chunk being decoded.
+    private FrameCache mDecoding;
+    private boolean mInputDone;
+    private int mSamplesPastEnd;
+
+    // Stats.
+    private int mDecodedCount;
+    private int mPresentedCount;
+    private int mStallCount;
+
+    // Set by the SurfaceTexture listener, which runs on some other thread.
+    private final Object mFrameSyncObject = new Object();
+    private boolean mFrameAvailable;
+
+
+    /**
+     * A set of textures holding one chunk's decoded frames, in presentation order.  When
+     * full, the oldest frame is overwritten.
+     */
+    private static class FrameCache {
+        final int[] textures;
+        final int[] framebuffers;
+        final long[] ptsUsec;
+        int start;
+        int count;
+        long syncUsec;          // decoding started here
+        long endUsec;           // only frames before this are kept
+        boolean overwrote;
+        boolean complete;
+
+        FrameCache(int capacity, int width, int height) {
+            textures = new int[capacity];
+            framebuffers = new int[capacity];
+            ptsUsec = new long[capacity];
+
+            GLES20.glGenTextures(capacity, textures, 0);
+            GLES20.glGenFramebuffers(capacity, framebuffers, 0);
+            GlUtil.checkGlError("glGen");
+            for (int i = 0; i < capacity; i++) {
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                        GLES20.GL_LINEAR);
+                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                        GLES20.GL_LINEAR);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                        GLES20.GL_CLAMP_TO_EDGE);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                        GLES20.GL_CLAMP_TO_EDGE);
+
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[i]);
+                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
+                        GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, textures[i], 0);
+                int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+                if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                    throw new RuntimeException("Framebuffer not complete, status=" + status);
+                }
+            }
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GlUtil.checkGlError("FrameCache");
+        }
+
+        void reset(long syncUsec, long endUsec) {
+            this.syncUsec = syncUsec;
+            this.endUsec = endUsec;
+            start = count = 0;
+            overwrote = complete = false;
+        }
+
+        /**
+         * Picks the slot for the next frame, evicting the oldest if we're full.
+         */
+        int nextSlot() {
+            int slot;
+            if (count < textures.length) {
+                slot = (start + count) % textures.length;
+                count++;
+            } else {
+                slot = start;
+                start = (start + 1) % textures.length;
+                overwrote = true;
+            }
+            return slot;
+        }
+
+        /**
+         * Returns the slot holding the Nth frame in presentation order.
+         */
+        int getSlot(int n) {
+            return (start + n) % textures.length;
+        }
+
+        /**
+         * Returns the end of the chunk that comes before this one: the earliest frame we
+         * kept, or the sync frame if we kept everything from there on.
+         */
+        long getPrevEndUsec() {
+            return (overwrote && count > 0) ? ptsUsec[start] : syncUsec;
+        }
+
+        void release() {
+            GLES20.glDeleteFramebuffers(framebuffers.length, framebuffers, 0);
+            GLES20.glDeleteTextures(textures.length, textures, 0);
+        }
+    }
+
+
+    /**
+     * Constructs a ReversePlayer.
+     *
+     * @param sourceFile        The video file to open.
+     * @param outputSurface     The Surface where frames will be sent.
+     * @param memoryBudgetBytes Limit on memory used for cached frames; see
+     *                          {@link #DEFAULT_MEMORY_BUDGET_BYTES}.
+     */
+    public ReversePlayer(File sourceFile, Surface outputSurface, long memoryBudgetBytes)
+            throws IOException {
+        mSourceFile = sourceFile;
+        mOutputSurface = outputSurface;
+        mMemoryBudgetBytes = memoryBudgetBytes;
+
+        MovieSource source = MovieSource.open(sourceFile);
+        try {
+            mVideoWidth = source.format.getInteger(MediaFormat.KEY_WIDTH);
+            mVideoHeight = source.format.getInteger(MediaFormat.KEY_HEIGHT);
+        } finally {
+            source.release();
+        }
+    }
+
+    /**
+     * Returns the width, in pixels, of the video.
+     */
+    public int getVideoWidth() {
+        return mVideoWidth;
+    }
+
+    /**
+     * Returns the height, in pixels, of the video.
+     */
+    public int getVideoHeight() {
+        return mVideoHeight;
+    }
+
+    /**
+     * Sets the clock that frames are paced against, e.g. an {@link AudioClock} to stay in
+     * step with audio.  The default is the system monotonic clock.  Must be called before
+     * play().
+     */
+    public void setClock(MediaClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Sets the playback rate, as a multiple of normal speed.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void setPlaybackRate(float rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("bad rate " + rate);
+        }
+        mPlaybackRate = rate;
+    }
+
+    /**
+     * Asks the player to continue backward from the specified time.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void seekTo(long timeUsec) {
+        mSeekRequestUsec = Math.max(timeUsec, 0);
+    }
+
+    /**
+     * Asks the player to stop.  Returns without waiting for playback to halt.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void requestStop() {
+        mIsStopRequested = true;
+    }
+
+    /**
+     * Plays the movie backward from the specified time to the start.  Pass -1 to start at
+     * the end.  Does not return until playback is complete or we're told to stop.
+     */
+    public void play(long startUsec) throws IOException {
+        if (!mSourceFile.canRead()) {
+            throw new FileNotFoundException("Unable to read " + mSourceFile);
+        }
+        FrameCache front = null;
+        FrameCache back = null;
+        try {
+            mKeyframeIndex = KeyframeIndex.get(mSourceFile);
+
+            mExtractor = new MediaExtractor();
+            mExtractor.setDataSource(mSourceFile.toString());
+            int trackIndex = MoviePlayer.selectTrack(mExtractor);
+            if (trackIndex < 0) {
+                throw new RuntimeException("No video track found in " + mSourceFile);
+            }
+            mExtractor.selectTrack(trackIndex);
+            MediaFormat format = mExtractor.getTrackFormat(trackIndex);
+
+            prepareGl();
+
+            mDecoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            mDecoder.configure(format, mDecoderSurface, null, 0);
+            mDecoder.start();
+            mDecoderInputBuffers = mDecoder.getInputBuffers();
+
+            long frameBytes = (long) mVideoWidth * mVideoHeight * 4;
+            int framesPerCache = (int) Math.max(mMemoryBudgetBytes / frameBytes / 2, 2);
+            Log.d(TAG, "ReversePlayer: caching " + framesPerCache + " frames x2 (" +
+                    (frameBytes * framesPerCache * 2 / (1024 * 1024)) + " MB)");
+            front = new FrameCache(framesPerCache, mVideoWidth, mVideoHeight);
+            back = new FrameCache(framesPerCache, mVideoWidth, mVideoHeight);
+
+            if (startUsec < 0) {
+                startUsec = mKeyframeIndex.getLastSampleTimeUsec();
+            }
+            doPlay(front, back, startUsec);
+        } finally {
+            Log.d(TAG, "ReversePlayer done: presented " + mPresentedCount + ", decoded " +
+                    mDecodedCount + ", stalled " + mStallCount + " times");
+            if (front != null) {
+                front.release();
+            }
+            if (back != null) {
+                back.release();
+            }
+            if (mDecoder != null) {
+                mDecoder.stop();
+                mDecoder.release();
+                mDecoder = null;
+            }
+            if (mExtractor != null) {
+                mExtractor.release();
+                mExtractor = null;
+            }
+            releaseGl();
+        }
+    }
+
+    /**
+     * Presentation loop.  Shows the front cache in reverse while decoding into the back one.
+     */
+    private void doPlay(FrameCache front, FrameCache back, long startUsec) {
+        boolean haveFront = startChunk(front, startUsec + 1);
+        if (!haveFront) {
+            return;
+        }
+        finishChunk(front);
+        boolean haveBack = startChunk(back, front.getPrevEndUsec());
+
+        long clockStartNsec = -1;
+        long clockStartPtsUsec = 0;
+        float clockRate = mPlaybackRate;
+
+        while (!mIsStopRequested) {
+            long seekUsec = mSeekRequestUsec;
+            if (seekUsec >= 0) {
+                mSeekRequestUsec = -1;
+                if (VERBOSE) Log.d(TAG, "reverse seek to " + seekUsec);
+                if (!startChunk(front, seekUsec + 1)) {
+                    break;
+                }
+                finishChunk(front);
+                haveBack = startChunk(back, front.getPrevEndUsec());
+                clockStartNsec = -1;
+            }
+
+            for (int i = front.count - 1; i >= 0; i--) {
+                if (mIsStopRequested || mSeekRequestUsec >= 0) {
+                    break;
+                }
+                int slot = front.getSlot(i);
+                long ptsUsec = front.ptsUsec[slot];
+                float rate = mPlaybackRate;
+                if (clockStartNsec < 0 || rate != clockRate) {
+                    // Starting out, or the rate changed.  Show this one now.
+                    clockStartNsec = mClock.nanoTime();
+                    clockStartPtsUsec = ptsUsec;
+                    clockRate = rate;
+                }
+                long deadlineNsec = clockStartNsec +
+                        (long) ((clockStartPtsUsec - ptsUsec) * 1000 / rate);
+
+                // Put the wait to good use.
+                long nowNsec = mClock.nanoTime();
+                while (nowNsec < deadlineNsec - 100000 && !mIsStopRequested) {
+                    long waitUsec = (deadlineNsec - nowNsec) / 1000;
+                    if (haveBack && !back.complete) {
+                        pumpDecoder(Math.min(waitUsec, TIMEOUT_USEC));
+                    } else {
+                        mClock.sleep(Math.min(waitUsec, 500000) * 1000);
+                    }
+                    nowNsec = mClock.nanoTime();
+                }
+                present(front.textures[slot]);
+            }
+            if (mIsStopRequested || mSeekRequestUsec >= 0) {
+                continue;
+            }
+
+            if (!haveBack) {
+                Log.d(TAG, "Reached start of movie");
+                break;
+            }
+            if (!back.complete) {
+                // Decoder couldn't keep up.  Wait for it, then pick up the pace from there.
+                mStallCount++;
+                finishChunk(back);
+                clockStartNsec = -1;
+            }
+            FrameCache tmp = front;
+            front = back;
+            back = tmp;
+            haveBack = startChunk(back, front.getPrevEndUsec());
+        }
+    }
+
+    /**
+     * Prepares to decode the frames before "endUsec", starting at the preceding sync frame.
+     *
+     * @return false if there's nothing before endUsec.
+     */
+    private boolean startChunk(FrameCache cache, long endUsec) {
+        if (endUsec <= mKeyframeIndex.getSyncTimeUsec(0)) {
+            return false;
+        }
+        long syncUsec = mKeyframeIndex.getSyncTimeBefore(endUsec - 1);
+        if (VERBOSE) Log.d(TAG, "chunk " + syncUsec + " - " + endUsec);
+
+        mExtractor.seekTo(syncUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mDecoder.flush();
+        cache.reset(syncUsec, endUsec);
+        mDecoding = cache;
+        mInputDone = false;
+        mSamplesPastEnd = 0;
+        return true;
+    }
+
+    /**
+     * Decodes the rest of the chunk in progress.
+     */
+    private void finishChunk(FrameCache cache) {
+        while (!cache.complete && !mIsStopRequested) {
+            pumpDecoder(TIMEOUT_USEC);
+        }
+    }
+
+    /**
+     * Feeds the decoder one sample if it wants one, and handles one output buffer if one
+     * is ready within the timeout.
+     */
+    private void pumpDecoder(long timeoutUsec) {
+        FrameCache cache = mDecoding;
+        if (!mInputDone) {
+            int inputBufIndex = mDecoder.dequeueInputBuffer(0);
+            if (inputBufIndex >= 0) {
+                long sampleUsec = mExtractor.getSampleTime();
+                boolean isSync =
+                        (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                boolean pastEnd = sampleUsec >= cache.endUsec;
+                if (sampleUsec < 0 || mSamplesPastEnd >= REORDER_SLACK ||
+                        (pastEnd && isSync && sampleUsec != cache.syncUsec)) {
+                    // Everything the chunk needs has gone in.
+                    mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mInputDone = true;
+                } else {
+                    mSamplesPastEnd = pastEnd ? mSamplesPastEnd + 1 : 0;
+                    ByteBuffer inputBuf = mDecoderInputBuffers[inputBufIndex];
+                    int chunkSize = mExtractor.readSampleData(inputBuf, 0);
+                    mDecoder.queueInputBuffer(inputBufIndex, 0, chunkSize, sampleUsec, 0);
+                    mExtractor.advance();
+                }
+            }
+        }
+
+        int decoderStatus = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUsec);
+        if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER ||
+                decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
+                decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            // nothing to do
+        } else if (decoderStatus < 0) {
+            throw new RuntimeException(
+                    "unexpected result from decoder.dequeueOutputBuffer: " + decoderStatus);
+        } else {
+            long ptsUsec = mBufferInfo.presentationTimeUs;
+            boolean keep = mBufferInfo.size != 0 && ptsUsec >= cache.syncUsec &&
+                    ptsUsec < cache.endUsec;
+            mDecoder.releaseOutputBuffer(decoderStatus, keep);
+            if (keep) {
+                awaitNewImage();
+                int slot = cache.nextSlot();
+                cache.ptsUsec[slot] = ptsUsec;
+                copyToCache(cache.framebuffers[slot]);
+                mDecodedCount++;
+            }
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                cache.complete = true;
+            }
+        }
+    }
+
+    /**
+     * Sets up EGL and GL state: the output surface, and a SurfaceTexture for the decoder.
+     */
+    private void prepareGl() {
+        mEglCore = new EglCore(null, 0);
+        mWindowSurface = new WindowSurface(mEglCore, mOutputSurface, false);
+        mWindowSurface.makeCurrent();
+
+        mExtRect = new FullFrameRect(
+                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        mTexRect = new FullFrameRect(
+                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+        mExtTextureId = mExtRect.createTextureObject();
+
+        // With no Looper on this thread, the callback arrives on the main thread.  That's
+        // fine, since all it does is set a flag.
+        mSurfaceTexture = new SurfaceTexture(mExtTextureId);
+        mSurfaceTexture.setOnFrameAvailableListener(
+                new SurfaceTexture.OnFrameAvailableListener() {
+                    @Override
+                    public void onFrameAvailable(SurfaceTexture st) {
+                        synchronized (mFrameSyncObject) {
+                            mFrameAvailable = true;
+                            mFrameSyncObject.notifyAll();
+                        }
+                    }
+                });
+        mDecoderSurface = new Surface(mSurfaceTexture);
+    }
+
+    private void releaseGl() {
+        if (mDecoderSurface != null) {
+            mDecoderSurface.release();
+            mDecoderSurface = null;
+        }
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+        }
+        if (mExtRect != null) {
+            mExtRect.release(true);
+            mExtRect = null;
+        }
+        if (mTexRect != null) {
+            mTexRect.release(true);
+            mTexRect = null;
+        }
+        if (mWindowSurface != null) {
+            mWindowSurface.release();
+            mWindowSurface = null;
+        }
+        if (mEglCore != null) {
+            mEglCore.release();
+            mEglCore = null;
+        }
+    }
+
+    /**
+     * Waits for the frame we just released to arrive at the SurfaceTexture, and latches it.
+     */
+    private void awaitNewImage() {
+        synchronized (mFrameSyncObject) {
+            while (!mFrameAvailable) {
+                try {
+                    mFrameSyncObject.wait(FRAME_WAIT_MSEC);
+                } catch (InterruptedException ie) {
+                    // discard
+                }
+                if (!mFrameAvailable && !mIsStopRequested) {
+                    throw new RuntimeException("frame wait timed out");
+                }
+                if (mIsStopRequested) {
+                    return;
+                }
+            }
+            mFrameAvailable = false;
+        }
+        mSurfaceTexture.updateTexImage();
+    }
+
+    /**
+     * Draws the latest decoder output into a cache framebuffer.
+     */
+    private void copyToCache(int framebuffer) {
+        mSurfaceTexture.getTransformMatrix(mSTMatrix);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glViewport(0, 0, mVideoWidth, mVideoHeight);
+        mExtRect.drawFrame(mExtTextureId, mSTMatrix);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Draws a cached frame to the output surface, letterboxed to preserve the video's aspect
+     * ratio.
+     */
+    private void present(int textureId) {
+        int winWidth = mWindowSurface.getWidth();
+        int winHeight = mWindowSurface.getHeight();
+        int width = winWidth;
+        int height = winHeight;
+        if ((long) mVideoWidth * winHeight > (long) mVideoHeight * winWidth) {
+            height = (int) ((long) winWidth * mVideoHeight / mVideoWidth);
+        } else {
+            width = (int) ((long) winHeight * mVideoWidth / mVideoHeight);
+        }
+        GLES20.glViewport(0, 0, winWidth, winHeight);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glViewport((winWidth - width) / 2, (winHeight - height) / 2, width, height);
+        mTexRect.drawFrame(textureId, GlUtil.IDENTITY_MATRIX);
+        mWindowSurface.swapBuffers();
+        mPresentedCount++;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * MediaClock that only moves when told to.  Sleeping on it returns immediately, after
+ * advancing the time by the requested amount plus a configurable overshoot, so code
+ * paced against it runs as fast as possible and always makes the same decisions.
+ * <p>
+ * System timestamps are taken to be in the simulated time base already, so callers can
+ * feed in whatever frame times they like.
+ * <p>
+ * Thread-safe.
+ */
+public class SimulatedClock implements MediaClock {
+    private long mNowNsec;
+    private long mSleepOvershootNsec;
+
+    /**
+     * Creates a clock that starts at "startNsec".
+     */
+    public SimulatedClock(long startNsec) {
+        mNowNsec = startNsec;
+    }
+
+    /**
+     * Sets how much longer than requested each sleep() takes, to mimic a real scheduler.
+     */
+    public synchronized void setSleepOvershoot(long nsec) {
+        mSleepOvershootNsec = nsec;
+    }
+
+    /**
+     * Moves the clock forward.
+     */
+    public synchronized void advance(long nsec) {
+        if (nsec < 0) {
+            throw new IllegalArgumentException("can't go backward");
+        }
+        mNowNsec += nsec;
+    }
+
+    @Override
+    public synchronized long nanoTime() {
+        return mNowNsec;
+    }
+
+    @Override
+    public synchronized void sleep(long nsec) {
+        mNowNsec += Math.max(nsec, 0) + mSleepOvershootNsec;
+    }
+
+    @Override
+    public long fromSystemNanos(long systemNanos) {
+        return systemNanos;
+    }
+}
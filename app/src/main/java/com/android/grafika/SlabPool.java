@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of fixed-size "direct" ByteBuffers ("slabs") for CircularEncoderBuffer.
+ * <p>
+ * Slabs are allocated on first use, up to a fixed maximum, and are kept in the pool when
+ * they're returned.  Once the pool has warmed up, borrowing and returning slabs doesn't
+ * allocate.  A pool may be shared by several buffers.
+ * <p>
+ * Thread-safe.
+ */
+public class SlabPool {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final int mSlabSize;
+    private final int mMaxSlabs;
+
+    // Slabs that have been allocated and are not in use.  Used as a stack.
+    private final ByteBuffer[] mFree;
+    private int mFreeCount;
+    private int mAllocatedCount;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param slabSize Size of each slab, in bytes.  This is the largest packet that can
+     *                 be stored.
+     * @param maxSlabs Maximum number of slabs the pool will allocate.
+     */
+    public SlabPool(int slabSize, int maxSlabs) {
+        mSlabSize = slabSize;
+        mMaxSlabs = maxSlabs;
+        mFree = new ByteBuffer[maxSlabs];
+    }
+
+    /**
+     * Returns the size of each slab, in bytes.
+     */
+    public int getSlabSize() {
+        return mSlabSize;
+    }
+
+    /**
+     * Returns the maximum number of slabs the pool will hand out.
+     */
+    public int getMaxSlabs() {
+        return mMaxSlabs;
+    }
+
+    /**
+     * Returns a slab, or null if all slabs are in use.  The contents of the slab are
+     * undefined.
+     */
+    public synchronized ByteBuffer borrow() {
+        if (mFreeCount > 0) {
+            ByteBuffer slab = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+            return slab;
+        }
+        if (mAllocatedCount < mMaxSlabs) {
+            mAllocatedCount++;
+            if (VERBOSE) Log.d(TAG, "allocating slab " + mAllocatedCount + "/" + mMaxSlabs);
+            return ByteBuffer.allocateDirect(mSlabSize);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a slab to the pool.
+     */
+    public synchronized void giveBack(ByteBuffer slab) {
+        if (slab.capacity() != mSlabSize || mFreeCount == mMaxSlabs) {
+            throw new IllegalArgumentException("slab does not belong to this pool");
+        }
+        mFree[mFreeCount++] = slab;
+    }
+}
@@ -16,31 +16,69 @@
 
 package com.android.grafika;
 
+import android.os.Build;
 import android.util.Log;
 
 /**
  * Movie player callback.
  * <p>
- * The goal here is to play back frames at the original rate.  This is done by introducing
- * a pause before the frame is submitted to the renderer.
+ * The goal here is to play back frames at the original rate, or a multiple of it.  This is
+ * done by introducing a pause before the frame is submitted to the renderer.
  * <p>
- * This is not coordinated with VSYNC.  Since we can't control the display's refresh rate, and
- * the source material has time stamps that specify when each frame should be presented,
- * we will have to drop or repeat frames occasionally.
+ * By default this is not coordinated with VSYNC.  Since we can't control the display's refresh
+ * rate, and the source material has time stamps that specify when each frame should be
+ * presented, we will have to drop or repeat frames occasionally.  Which frames get repeated
+ * depends on how the sleeps happen to line up with the refresh, so 24fps or 30fps content
+ * judders visibly on a 60Hz (or 90Hz, or 120Hz) display.
+ * <p>
+ * With {@link #setVsyncPacing(boolean)}, each frame is instead assigned to a specific vsync,
+ * using the refresh timing from {@link VsyncTracker}, and handed to the decoder with that
+ * time so the compositor shows it then.  Because every frame's vsync is picked from its
+ * position on an ideal timeline, rather than from when the previous frame happened to go
+ * out, the repeats follow an even pulldown cadence (2:3:2:3 for 24fps at 60Hz).  Frames that
+ * land on the same vsync as the previous one, and vsyncs where the previous frame has to be
+ * shown longer than the cadence calls for, are counted.
+ * <p>
+ * Waiting is done by a {@link FrameWaiter}, which combines sleeping and spinning to hit
+ * each deadline closely.  Pacing accuracy is recorded in histograms as we go: how late each
+ * frame was released relative to when we wanted it, how much longer each sleep took than
+ * requested, and how long each frame was held between arriving in preRender() and being
+ * released.
  * <p>
  * Thread restrictions are noted in the method descriptions.  The FrameCallback overrides should
  * only be called from the MoviePlayer.
  */
 public class SpeedControlCallback implements MoviePlayer.FrameCallback {
     private static final String TAG = MainActivity.TAG;
-    private static final boolean CHECK_SLEEP_TIME = false;
+    private static final boolean VERBOSE = false;
 
     private static final long ONE_MILLION = 1000000L;
 
+    // Hand frames to the decoder this many vsyncs ahead of when they're due, so they're
+    // queued in time for the compositor.
+    private static final int VSYNC_LEAD = 2;
+
+    private boolean mLatched;           // false until the first frame, and after resync()
     private long mPrevPresentUsec;
     private long mPrevMonoUsec;
     private long mFixedFrameDurationUsec;
     private boolean mLoopReset;
+    private volatile float mPlaybackRate = 1.0f;
+    private MediaClock mClock = MonotonicClock.getInstance();
+    private FrameWaiter mWaiter = new FrameWaiter(mClock);
+
+    // Vsync pacing state.  Only used on the decode thread.
+    private VsyncTracker mVsyncTracker;
+    private long mIdealNsec;            // where the current frame falls on the timeline
+    private long mPrevTargetNsec;       // vsync chosen for the previous frame, 0 to resync
+    private long mRenderTimeNsec;
+    private volatile int mVsyncDropCount;
+    private volatile int mVsyncRepeatCount;
+
+    // Pacing telemetry, beyond what mWaiter records.  Recorded on the decode thread,
+    // readable from anywhere.
+    private final LatencyHistogram mDecodeToRender = new LatencyHistogram("decode-to-render");
+    private long mPreRenderStartNsec;
 
     /**
      * Sets a fixed playback rate.  If set, this will ignore the presentation time stamp
@@ -50,6 +88,98 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         mFixedFrameDurationUsec = ONE_MILLION / fps;
     }
 
+    /**
+     * Sets the clock that frames are paced against, e.g. an {@link AudioClock} to keep
+     * video in step with audio, or a {@link SimulatedClock} to exercise the pacing logic
+     * without waiting.  The default is the system monotonic clock.  Must be called before
+     * playback thread starts.
+     * <p>
+     * Vsync pacing always uses the system clock, because that's what display timestamps
+     * are based on.
+     */
+    public void setClock(MediaClock clock) {
+        mClock = clock;
+        mWaiter = new FrameWaiter(clock);
+    }
+
+    /**
+     * Enables or disables vsync pacing.  Requires API 21, for releaseOutputBuffer() with a
+     * render time; ignored on older releases.  Must be called before playback thread starts.
+     */
+    public void setVsyncPacing(boolean enabled) {
+        if (enabled && Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            Log.w(TAG, "HEY: vsync pacing requires API 21");
+            return;
+        }
+        mVsyncTracker = enabled ? VsyncTracker.getInstance() : null;
+    }
+
+    /**
+     * Returns the number of frames that were assigned the same vsync as the frame after
+     * them, and so were never seen.  Only counted in vsync pacing mode.
+     */
+    public int getDroppedFrameCount() {
+        return mVsyncDropCount;
+    }
+
+    /**
+     * Returns the number of extra vsyncs for which a frame was repeated, beyond what the
+     * pulldown cadence called for.  Only counted in vsync pacing mode.
+     */
+    public int getRepeatedFrameCount() {
+        return mVsyncRepeatCount;
+    }
+
+    /**
+     * Returns the histogram of how late frames were released, relative to their target
+     * time.  This is the delivery error of the {@link FrameWaiter}.
+     */
+    public LatencyHistogram getLatenessHistogram() {
+        return mWaiter.getDeliveryErrorHistogram();
+    }
+
+    /**
+     * Returns the histogram of how much longer each sleep took than requested.
+     */
+    public LatencyHistogram getSleepOvershootHistogram() {
+        return mWaiter.getSleepOvershootHistogram();
+    }
+
+    /**
+     * Returns the histogram of the time between a decoded frame arriving in preRender()
+     * and its release to the display returning, i.e. how long pacing held it.
+     */
+    public LatencyHistogram getDecodeToRenderHistogram() {
+        return mDecodeToRender;
+    }
+
+    /**
+     * Logs the pacing telemetry.  Call when playback stops.
+     */
+    public void logStats() {
+        Log.d(TAG, "SpeedControlCallback " + mWaiter);
+        Log.d(TAG, "SpeedControlCallback " + mDecodeToRender);
+        if (mVsyncTracker != null) {
+            Log.d(TAG, "SpeedControlCallback vsync: dropped " + mVsyncDropCount +
+                    ", repeated " + mVsyncRepeatCount);
+        }
+    }
+
+    /**
+     * Sets the playback rate.  Frames are presented at (time stamp delta / rate) intervals,
+     * so 0.5 is half speed and 2.0 is double speed.  Takes effect on the next frame.
+     * <p>
+     * Usually set through {@link MoviePlayer#setPlaybackRate(float)}, which also drops frames
+     * that can't be shown at high rates.  May be called from any thread.
+     */
+    @Override
+    public void setPlaybackRate(float rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("bad rate " + rate);
+        }
+        mPlaybackRate = rate;
+    }
+
     // runs on decode thread
     @Override
     public void preRender(long presentationTimeUsec) {
@@ -61,88 +191,169 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         // If the frame rate is faster than vsync we should be dropping frames.  On
         // Android 4.4 this may not be happening.
 
-        if (mPrevMonoUsec == 0) {
-            // Latch current values, then return immediately.
-            mPrevMonoUsec = System.nanoTime() / 1000;
+        mPreRenderStartNsec = mClock.nanoTime();
+        if (mVsyncTracker != null) {
+            preRenderVsync(presentationTimeUsec);
+            return;
+        }
+
+        if (!mLatched) {
+            // Latch current values, then return immediately.  (The clock's time may well be
+            // zero here, e.g. for an AudioClock, so we can't use that to mean "not latched".)
+            mPrevMonoUsec = mClock.nanoTime() / 1000;
             mPrevPresentUsec = presentationTimeUsec;
+            mLatched = true;
         } else {
             // Compute the desired time delta between the previous frame and this frame.
-            long frameDelta;
-            if (mLoopReset) {
-                // We don't get an indication of how long the last frame should appear
-                // on-screen, so we just throw a reasonable value in.  We could probably
-                // do better by using a previous frame duration or some sort of average;
-                // for now we just use 30fps.
-                mPrevPresentUsec = presentationTimeUsec - ONE_MILLION / 30;
-                mLoopReset = false;
-            }
-            if (mFixedFrameDurationUsec != 0) {
-                // Caller requested a fixed frame rate.  Ignore PTS.
-                frameDelta = mFixedFrameDurationUsec;
-            } else {
-                frameDelta = presentationTimeUsec - mPrevPresentUsec;
-            }
-            if (frameDelta < 0) {
-                Log.w(TAG, "Weird, video times went backward");
-                frameDelta = 0;
-            } else if (frameDelta == 0) {
-                // This suggests a possible bug in movie generation.
-                Log.i(TAG, "Warning: current frame and previous frame had same timestamp");
-            } else if (frameDelta > 10 * ONE_MILLION) {
-                // Inter-frame times could be arbitrarily long.  For this player, we want
-                // to alert the developer that their movie might have issues (maybe they
-                // accidentally output timestamps in nsec rather than usec).
-                Log.i(TAG, "Inter-frame pause was " + (frameDelta / ONE_MILLION) +
-                        "sec, capping at 5 sec");
-                frameDelta = 5 * ONE_MILLION;
-            }
+            long frameDelta = getFrameDelta(presentationTimeUsec);
 
-            long desiredUsec = mPrevMonoUsec + frameDelta;  // when we want to wake up
-            long nowUsec = System.nanoTime() / 1000;
-            while (nowUsec < (desiredUsec - 100) /*&& mState == RUNNING*/) {
-                // Sleep until it's time to wake up.  To be responsive to "stop" commands
-                // we're going to wake up every half a second even if the sleep is supposed
-                // to be longer (which should be rare).  The alternative would be
-                // to interrupt the thread, but that requires more work.
-                //
-                // The precision of the sleep call varies widely from one device to another;
-                // we may wake early or late.  Different devices will have a minimum possible
-                // sleep time. If we're within 100us of the target time, we'll probably
-                // overshoot if we try to sleep, so just go ahead and continue on.
-                long sleepTimeUsec = desiredUsec - nowUsec;
-                if (sleepTimeUsec > 500000) {
-                    sleepTimeUsec = 500000;
-                }
-                try {
-                    if (CHECK_SLEEP_TIME) {
-                        long startNsec = System.nanoTime();
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                        long actualSleepNsec = System.nanoTime() - startNsec;
-                        Log.d(TAG, "sleep=" + sleepTimeUsec + " actual=" + (actualSleepNsec / 1000) +
-                                " diff=" + (Math.abs(actualSleepNsec / 1000 - sleepTimeUsec)) +
-                                " (usec)");
-                    } else {
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                    }
-                } catch (InterruptedException ie) {
-                }
-                nowUsec = System.nanoTime() / 1000;
-            }
+            // Scale by the playback rate to get the wall-clock delta.  Time stamps keep
+            // advancing by the unscaled amount, so we stay on the movie's timeline.
+            long wallDelta = (long) (frameDelta / mPlaybackRate);
+
+            long desiredUsec = mPrevMonoUsec + wallDelta;  // when we want to wake up
+
+            // Wait until it's time.  The precision of the sleep call varies widely from one
+            // device to another, so FrameWaiter sleeps until a margin it has learned from
+            // this device's timing, then spins for the rest.
+            mWaiter.waitUntil(desiredUsec * 1000);
 
             // Advance times using calculated time values, not the post-sleep monotonic
             // clock time, to avoid drifting.
-            mPrevMonoUsec += frameDelta;
+            mPrevMonoUsec += wallDelta;
             mPrevPresentUsec += frameDelta;
         }
     }
 
+    /**
+     * Returns the time stamp delta between the previous frame and this one, in
+     * microseconds, sanity-checked.
+     */
+    private long getFrameDelta(long presentationTimeUsec) {
+        long frameDelta;
+        if (mLoopReset) {
+            // We don't get an indication of how long the last frame should appear
+            // on-screen, so we just throw a reasonable value in.  We could probably
+            // do better by using a previous frame duration or some sort of average;
+            // for now we just use 30fps.
+            mPrevPresentUsec = presentationTimeUsec - ONE_MILLION / 30;
+            mLoopReset = false;
+        }
+        if (mFixedFrameDurationUsec != 0) {
+            // Caller requested a fixed frame rate.  Ignore PTS.
+            frameDelta = mFixedFrameDurationUsec;
+        } else {
+            frameDelta = presentationTimeUsec - mPrevPresentUsec;
+        }
+        if (frameDelta < 0) {
+            Log.w(TAG, "Weird, video times went backward");
+            frameDelta = 0;
+        } else if (frameDelta == 0) {
+            // This suggests a possible bug in movie generation.
+            Log.i(TAG, "Warning: current frame and previous frame had same timestamp");
+        } else if (frameDelta > 10 * ONE_MILLION) {
+            // Inter-frame times could be arbitrarily long.  For this player, we want
+            // to alert the developer that their movie might have issues (maybe they
+            // accidentally output timestamps in nsec rather than usec).
+            Log.i(TAG, "Inter-frame pause was " + (frameDelta / ONE_MILLION) +
+                    "sec, capping at 5 sec");
+            frameDelta = 5 * ONE_MILLION;
+        }
+        return frameDelta;
+    }
+
+    /**
+     * Picks the vsync for this frame, and waits until it's time to hand it over.
+     */
+    private void preRenderVsync(long presentationTimeUsec) {
+        VsyncTracker tracker = mVsyncTracker;
+        if (!tracker.waitForTiming()) {
+            // No refresh timing (screen off?).  Just show it.
+            mRenderTimeNsec = 0;
+            mPrevTargetNsec = 0;
+            return;
+        }
+        long periodNsec = tracker.getPeriodNsec();
+        long earliestNsec = tracker.getVsyncAtOrAfter(System.nanoTime() +
+                VSYNC_LEAD * periodNsec);
+
+        long targetNsec;
+        if (mPrevTargetNsec == 0) {
+            // Start on the first vsync we can make.  Put the timeline a quarter period
+            // after it, so frames don't sit right on the boundary between two vsyncs
+            // (24fps at 60Hz would otherwise land exactly on every other boundary, and
+            // jitter in the period estimate would scramble the cadence).
+            targetNsec = earliestNsec;
+            mIdealNsec = targetNsec + periodNsec / 4;
+        } else {
+            long frameDelta = getFrameDelta(presentationTimeUsec);
+            long wallDeltaNsec = (long) (frameDelta * 1000 / mPlaybackRate);
+            mIdealNsec += wallDeltaNsec;
+            targetNsec = tracker.getNearestVsync(mIdealNsec);
+            if (targetNsec < earliestNsec) {
+                // Fell behind (slow decode, or the thread got descheduled).  Rather than
+                // racing to catch up, pick up the timeline from here.
+                if (VERBOSE) Log.d(TAG, "late by " + (earliestNsec - targetNsec) + "ns");
+                targetNsec = earliestNsec;
+                mIdealNsec = targetNsec + periodNsec / 4;
+            }
+
+            // How many vsyncs the previous frame gets, vs. how many the cadence allows.
+            long vsyncs = (targetNsec - mPrevTargetNsec + periodNsec / 2) / periodNsec;
+            long allowed = (wallDeltaNsec + periodNsec - 1) / periodNsec;
+            if (vsyncs <= 0) {
+                mVsyncDropCount++;
+            } else if (vsyncs > allowed) {
+                mVsyncRepeatCount += vsyncs - allowed;
+            }
+        }
+        mPrevTargetNsec = targetNsec;
+        mPrevPresentUsec = presentationTimeUsec;
+
+        // Wait until it's time to queue the frame.
+        mWaiter.waitUntil(mClock.fromSystemNanos(targetNsec - VSYNC_LEAD * periodNsec));
+        mRenderTimeNsec = targetNsec;
+    }
+
     // runs on decode thread
     @Override
     public void postRender() {
+        mDecodeToRender.record((mClock.nanoTime() - mPreRenderStartNsec) / 1000);
+    }
+
+    // runs on decode thread
+    @Override
+    public void resync() {
+        // Latch new values on the next frame.
+        mLatched = false;
+        mPrevTargetNsec = 0;
+        mLoopReset = false;
     }
 
     @Override
     public void loopReset() {
         mLoopReset = true;
+        if (mVsyncTracker != null) {
+            Log.d(TAG, "vsync pacing: dropped " + mVsyncDropCount + ", repeated " +
+                    mVsyncRepeatCount);
+        }
+    }
+
+    /**
+     * Breaks off any wait in preRender(), and makes later calls return without waiting.
+     * Without this, a clock that has stopped (e.g. an AudioClock whose track is paused)
+     * would leave the decode thread waiting forever.
+     * <p>
+     * May be called from any thread.
+     */
+    @Override
+    public void requestStop() {
+        mWaiter.requestStop();
+    }
+
+    // runs on decode thread
+    @Override
+    public long getRenderTimeNsec() {
+        return mVsyncTracker != null ? mRenderTimeNsec : 0;
     }
 }
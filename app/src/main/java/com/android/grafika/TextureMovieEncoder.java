@@ -26,6 +26,7 @@ import android.util.Log;
 
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.ProgramCache;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
 
@@ -73,12 +74,14 @@ public class TextureMovieEncoder implements Runnable {
     private WindowSurface mInputWindowSurface;
     private EglCore mEglCore;
     private FullFrameRect mFullScreen;
+    private final ProgramCache mProgramCache = new ProgramCache();
     private int mTextureId;
     private int mFrameNum;
     private VideoEncoderCore mVideoEncoder;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private volatile MediaClock mClock = MonotonicClock.getInstance();
 
     private Object mReadyFence = new Object();      // guards ready/running
     private boolean mReady;
@@ -101,14 +104,26 @@ public class TextureMovieEncoder implements Runnable {
         final int mHeight;
         final int mBitRate;
         final EGLContext mEglContext;
+        final MediaClock mClock;
 
         public EncoderConfig(File outputFile, int width, int height, int bitRate,
                              EGLContext sharedEglContext) {
+            this(outputFile, width, height, bitRate, sharedEglContext,
+                    MonotonicClock.getInstance());
+        }
+
+        /**
+         * Creates a configuration that stamps frames with times from "clock".  SurfaceTexture
+         * timestamps are converted with {@link MediaClock#fromSystemNanos(long)}.
+         */
+        public EncoderConfig(File outputFile, int width, int height, int bitRate,
+                             EGLContext sharedEglContext, MediaClock clock) {
             mOutputFile = outputFile;
             mWidth = width;
             mHeight = height;
             mBitRate = bitRate;
             mEglContext = sharedEglContext;
+            mClock = clock;
         }
 
         @Override
@@ -134,6 +149,7 @@ public class TextureMovieEncoder implements Runnable {
                 return;
             }
             mRunning = true;
+            mClock = config.mClock;
             new Thread(this, "TextureMovieEncoder").start();
             while (!mReady) {
                 try {
@@ -211,6 +227,7 @@ public class TextureMovieEncoder implements Runnable {
             Log.w(TAG, "HEY: got SurfaceTexture with timestamp of zero");
             return;
         }
+        timestamp = mClock.fromSystemNanos(timestamp);
 
         mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
                 (int) (timestamp >> 32), (int) timestamp, transform));
@@ -365,6 +382,7 @@ public class TextureMovieEncoder implements Runnable {
         // Release the EGLSurface and EGLContext.
         mInputWindowSurface.releaseEglSurface();
         mFullScreen.release(false);
+        mProgramCache.release(false);
         mEglCore.release();
 
         // Create a new EGLContext and recreate the window surface.
@@ -374,7 +392,7 @@ public class TextureMovieEncoder implements Runnable {
 
         // Create new programs and such for the new context.
         mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+                mProgramCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT), false);
     }
 
     private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
@@ -389,7 +407,7 @@ public class TextureMovieEncoder implements Runnable {
         mInputWindowSurface.makeCurrent();
 
         mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+                mProgramCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT), false);
     }
 
     private void releaseEncoder() {
@@ -402,6 +420,8 @@ public class TextureMovieEncoder implements Runnable {
             mFullScreen.release(false);
             mFullScreen = null;
         }
+        Log.d(TAG, "encoder released: " + mProgramCache);
+        mProgramCache.release(false);
         if (mEglCore != null) {
             mEglCore.release();
             mEglCore = null;
@@ -0,0 +1,647 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.Surface;
+
+import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.OffscreenSurface;
+import com.android.grafika.gles.Texture2dProgram;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Generates strips of thumbnails for movie files: one frame from each of N equal intervals
+ * across the movie.
+ * <p>
+ * Only sync frames are used, so each thumbnail needs one seek and one decoded frame, rather
+ * than decoding up to the exact time.  Frames go from the decoder to a SurfaceTexture, and
+ * are scaled down by rendering them into a small pbuffer, which is read back with
+ * glReadPixels.  This is far cheaper than converting full-size YUV on the CPU.
+ * <p>
+ * Several worker threads run at once, each with its own EGL context and decoder, so a list
+ * of files fills in quickly.  Decoders come from a private {@link DecoderPool}, so a worker
+ * moving on to a file with the same format doesn't pay for codec setup again.  Each worker
+ * handles a whole file at a time; the most recent request is served first, on the theory
+ * that it's what the user is looking at.
+ * <p>
+ * Results are kept in a memory LRU cache and a disk LRU cache.  The cache key includes the
+ * file's modification time, so a re-recorded file doesn't show stale thumbnails.
+ * <p>
+ * Callbacks are delivered on the main thread.
+ */
+public class ThumbnailService {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final String DISK_CACHE_DIR = "thumbnails";
+    private static final int TIMEOUT_USEC = 10000;
+    private static final int MAX_TRY_AGAIN = 200;           // ~2 sec of TIMEOUT_USEC
+    private static final long FRAME_WAIT_MSEC = 1000;
+
+    // Flips the image vertically, to undo glReadPixels' bottom-up row order.
+    private static final float[] FLIP_MATRIX = new float[16];
+    static {
+        Matrix.setIdentityM(FLIP_MATRIX, 0);
+        Matrix.translateM(FLIP_MATRIX, 0, 0.0f, 1.0f, 0.0f);
+        Matrix.scaleM(FLIP_MATRIX, 0, 1.0f, -1.0f, 1.0f);
+    }
+
+    private final int mThumbWidth;
+    private final int mThumbHeight;
+    private final File mDiskDir;
+    private final long mDiskMaxBytes;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final DecoderPool mDecoderPool;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Worker[] mWorkers;
+
+    // Pending requests, newest last.  Guarded by mLock.
+    private final Object mLock = new Object();
+    private final ArrayList<Request> mQueue = new ArrayList<Request>();
+    private boolean mShutdown;
+
+    // Disk cache bookkeeping.  Guarded by mDiskLock.
+    private final Object mDiskLock = new Object();
+    private long mDiskBytes = -1;       // -1 until we've looked
+
+    // Stats.  Guarded by mLock.
+    private int mMemoryHitCount;
+    private int mDiskHitCount;
+    private int mDecodeCount;
+
+    /**
+     * Receives thumbnails.
+     */
+    public interface Callback {
+        /**
+         * Called on the main thread as each thumbnail becomes available.  They may arrive
+         * in any order.
+         *
+         * @param file The file passed to {@link #requestStrip}.
+         * @param index Position in the strip, from 0 to count-1.
+         * @param bitmap The thumbnail, or null if the frame couldn't be decoded.
+         */
+        void onThumbnail(File file, int index, Bitmap bitmap);
+    }
+
+    private static class Request {
+        final File file;
+        final long lastModified;
+        final int count;
+        final Callback callback;
+
+        Request(File file, int count, Callback callback) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.count = count;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Creates the service and starts its worker threads.
+     *
+     * @param cacheDir Directory for the disk cache, e.g. Context.getCacheDir().
+     * @param thumbWidth Thumbnail width, in pixels.
+     * @param thumbHeight Thumbnail height, in pixels.  Movies with a different aspect ratio
+     *        are letterboxed.
+     * @param threadCount Number of frames to decode in parallel.
+     * @param memoryCacheBytes Size of the memory cache.
+     * @param diskCacheBytes Size of the disk cache.
+     */
+    public ThumbnailService(File cacheDir, int thumbWidth, int thumbHeight, int threadCount,
+            int memoryCacheBytes, long diskCacheBytes) {
+        mThumbWidth = thumbWidth;
+        mThumbHeight = thumbHeight;
+        mDiskDir = new File(cacheDir, DISK_CACHE_DIR);
+        mDiskMaxBytes = diskCacheBytes;
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mDecoderPool = new DecoderPool(threadCount);
+
+        mWorkers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers[i] = new Worker("Thumbnail " + i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Asks for a strip of "count" thumbnails from "file".  If the whole strip is in the
+     * memory cache, it's delivered right away (on the next pass through the main loop);
+     * otherwise the request is queued for a worker.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void requestStrip(File file, int count, Callback callback) {
+        Request req = new Request(file, count, callback);
+        Bitmap[] bitmaps = new Bitmap[count];
+        boolean allCached = true;
+        for (int i = 0; i < count && allCached; i++) {
+            bitmaps[i] = mMemoryCache.get(getKey(req, i));
+            allCached = bitmaps[i] != null;
+        }
+        if (allCached) {
+            synchronized (mLock) {
+                mMemoryHitCount += count;
+            }
+            for (int i = 0; i < count; i++) {
+                deliver(req, i, bitmaps[i]);
+            }
+            return;
+        }
+
+        // The worker will pick up whatever's in memory when it gets to this.
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("service has been shut down");
+            }
+            mQueue.add(req);
+            mLock.notify();
+        }
+    }
+
+    /**
+     * Drops all queued requests for the callback.  Thumbnails already being decoded may
+     * still arrive.
+     */
+    public void cancel(Callback callback) {
+        synchronized (mLock) {
+            for (int i = mQueue.size() - 1; i >= 0; i--) {
+                if (mQueue.get(i).callback == callback) {
+                    mQueue.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the workers after their current file, and releases idle decoders.  Does not
+     * wait for the workers to finish.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mQueue.clear();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns a short summary of cache effectiveness, for logging.
+     */
+    public String getStats() {
+        synchronized (mLock) {
+            return "memHits=" + mMemoryHitCount + " diskHits=" + mDiskHitCount +
+                    " decoded=" + mDecodeCount + " decoders[" + mDecoderPool.getStats() + "]";
+        }
+    }
+
+    /**
+     * Waits for a request.  Returns null when it's time to quit.
+     */
+    private Request takeRequest() {
+        synchronized (mLock) {
+            while (mQueue.isEmpty() && !mShutdown) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) {
+                    // discard
+                }
+            }
+            if (mShutdown) {
+                return null;
+            }
+            return mQueue.remove(mQueue.size() - 1);
+        }
+    }
+
+    private boolean isShutdown() {
+        synchronized (mLock) {
+            return mShutdown;
+        }
+    }
+
+    private void deliver(final Request req, final int index, final Bitmap bitmap) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                req.callback.onThumbnail(req.file, index, bitmap);
+            }
+        });
+    }
+
+    private String getKey(Request req, int index) {
+        return Integer.toHexString(req.file.getAbsolutePath().hashCode()) + "-" +
+                req.file.getName() + "-" + req.lastModified + "-" + index + "of" + req.count +
+                "-" + mThumbWidth + "x" + mThumbHeight + ".jpg";
+    }
+
+    /**
+     * Loads a thumbnail from the disk cache, or returns null if it's not there.
+     */
+    private Bitmap loadFromDisk(String key) {
+        File file = new File(mDiskDir, key);
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap != null) {
+            // Used recently; move it to the back of the eviction line.
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Saves a thumbnail to the disk cache, evicting the least-recently-used entries if the
+     * cache is over budget.
+     */
+    private void saveToDisk(String key, Bitmap bitmap) {
+        if (!mDiskDir.isDirectory() && !mDiskDir.mkdirs()) {
+            Log.w(TAG, "HEY: unable to create " + mDiskDir);
+            return;
+        }
+        File file = new File(mDiskDir, key);
+        File tmpFile = new File(mDiskDir, key + ".tmp");
+        BufferedOutputStream bos = null;
+        try {
+            bos = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, bos);
+            bos.close();
+            bos = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "HEY: unable to save thumbnail " + file, ioe);
+            tmpFile.delete();
+            return;
+        } finally {
+            if (bos != null) {
+                try {
+                    bos.close();
+                } catch (IOException ioe) {
+                    // discard
+                }
+            }
+        }
+
+        synchronized (mDiskLock) {
+            if (mDiskBytes < 0) {
+                mDiskBytes = 0;
+                for (File f : listDiskCache()) {
+                    mDiskBytes += f.length();
+                }
+            } else {
+                mDiskBytes += file.length();
+            }
+            if (mDiskBytes > mDiskMaxBytes) {
+                File[] files = listDiskCache();
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File a, File b) {
+                        long diff = a.lastModified() - b.lastModified();
+                        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                    }
+                });
+                for (int i = 0; i < files.length && mDiskBytes > mDiskMaxBytes; i++) {
+                    long length = files[i].length();
+                    if (files[i].delete()) {
+                        mDiskBytes -= length;
+                    }
+                }
+                if (VERBOSE) Log.d(TAG, "trimmed thumbnail cache to " + mDiskBytes);
+            }
+        }
+    }
+
+    private File[] listDiskCache() {
+        File[] files = mDiskDir.listFiles();
+        return files != null ? files : new File[0];
+    }
+
+
+    /**
+     * A thread with its own EGL context, decoder output SurfaceTexture, and readback buffer.
+     */
+    private class Worker extends Thread {
+        private EglCore mEglCore;
+        private OffscreenSurface mOffscreenSurface;
+        private FullFrameRect mExtRect;
+        private int mTextureId;
+        private SurfaceTexture mSurfaceTexture;
+        private Surface mDecoderSurface;
+        private ByteBuffer mPixelBuf;
+        private final float[] mSTMatrix = new float[16];
+        private final float[] mTexMatrix = new float[16];
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+        private final Object mFrameSyncObject = new Object();
+        private boolean mFrameAvailable;
+
+        Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            try {
+                prepareGl();
+                Request req;
+                while ((req = takeRequest()) != null) {
+                    try {
+                        processRequest(req);
+                    } catch (Exception ex) {
+                        // A bad file shouldn't take the worker down with it.
+                        Log.w(TAG, "HEY: thumbnail extraction failed for " + req.file, ex);
+                    }
+                }
+            } finally {
+                releaseGl();
+                // Whoever gets here last leaves no idle decoders behind.
+                mDecoderPool.clear();
+                Log.d(TAG, getName() + " exiting: " + getStats());
+            }
+        }
+
+        private void prepareGl() {
+            mEglCore = new EglCore(null, 0);
+            mOffscreenSurface = new OffscreenSurface(mEglCore, mThumbWidth, mThumbHeight);
+            mOffscreenSurface.makeCurrent();
+            mExtRect = new FullFrameRect(
+                    new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+            mTextureId = mExtRect.createTextureObject();
+
+            // No Looper on this thread, so the callback arrives on the main thread.
+            mSurfaceTexture = new SurfaceTexture(mTextureId);
+            mSurfaceTexture.setOnFrameAvailableListener(
+                    new SurfaceTexture.OnFrameAvailableListener() {
+                        @Override
+                        public void onFrameAvailable(SurfaceTexture st) {
+                            synchronized (mFrameSyncObject) {
+                                mFrameAvailable = true;
+                                mFrameSyncObject.notifyAll();
+                            }
+                        }
+                    });
+            mDecoderSurface = new Surface(mSurfaceTexture);
+
+            mPixelBuf = ByteBuffer.allocateDirect(mThumbWidth * mThumbHeight * 4);
+            mPixelBuf.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void releaseGl() {
+            if (mDecoderSurface != null) {
+                mDecoderSurface.release();
+                mDecoderSurface = null;
+            }
+            if (mSurfaceTexture != null) {
+                mSurfaceTexture.release();
+                mSurfaceTexture = null;
+            }
+            if (mExtRect != null) {
+                mExtRect.release(true);
+                mExtRect = null;
+            }
+            if (mOffscreenSurface != null) {
+                mOffscreenSurface.release();
+                mOffscreenSurface = null;
+            }
+            if (mEglCore != null) {
+                mEglCore.release();
+                mEglCore = null;
+            }
+        }
+
+        /**
+         * Produces every thumbnail in the strip, from cache if possible.
+         */
+        private void processRequest(Request req) throws IOException {
+            ArrayList<Integer> missing = new ArrayList<Integer>();
+            for (int i = 0; i < req.count; i++) {
+                String key = getKey(req, i);
+                Bitmap bitmap = mMemoryCache.get(key);
+                if (bitmap != null) {
+                    synchronized (mLock) {
+                        mMemoryHitCount++;
+                    }
+                } else {
+                    bitmap = loadFromDisk(key);
+                    if (bitmap != null) {
+                        mMemoryCache.put(key, bitmap);
+                        synchronized (mLock) {
+                            mDiskHitCount++;
+                        }
+                    }
+                }
+                if (bitmap != null) {
+                    deliver(req, i, bitmap);
+                } else {
+                    missing.add(i);
+                }
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+
+            KeyframeIndex index = KeyframeIndex.get(req.file);
+            MediaExtractor extractor = new MediaExtractor();
+            MediaCodec decoder = null;
+            try {
+                extractor.setDataSource(req.file.toString());
+                int trackIndex = MoviePlayer.selectTrack(extractor);
+                if (trackIndex < 0) {
+                    throw new RuntimeException("No video track found in " + req.file);
+                }
+                extractor.selectTrack(trackIndex);
+                MediaFormat format = extractor.getTrackFormat(trackIndex);
+                decoder = mDecoderPool.acquire(format, mDecoderSurface);
+                ByteBuffer[] inputBuffers = decoder.getInputBuffers();
+
+                int videoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+                int videoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+                long durationUsec = index.getLastSampleTimeUsec();
+                long prevSyncUsec = -1;
+                Bitmap prevBitmap = null;
+                for (int i : missing) {
+                    if (isShutdown()) {
+                        break;
+                    }
+                    long syncUsec = index.getSyncTimeBefore(durationUsec * i / req.count);
+                    Bitmap bitmap;
+                    if (syncUsec == prevSyncUsec) {
+                        // Intervals are shorter than the GOP; reuse the frame.
+                        bitmap = prevBitmap;
+                    } else {
+                        bitmap = decodeFrame(decoder, inputBuffers, extractor, syncUsec,
+                                videoWidth, videoHeight);
+                    }
+                    if (bitmap != null) {
+                        // Save a reused frame under this index's key too, or it would miss
+                        // the disk cache next time and we'd decode the file again.
+                        String key = getKey(req, i);
+                        saveToDisk(key, bitmap);
+                        mMemoryCache.put(key, bitmap);
+                    }
+                    deliver(req, i, bitmap);
+                    prevSyncUsec = syncUsec;
+                    prevBitmap = bitmap;
+                }
+            } finally {
+                if (decoder != null) {
+                    mDecoderPool.recycle(decoder);
+                }
+                extractor.release();
+            }
+        }
+
+        /**
+         * Decodes the sync frame at "syncUsec" and renders a thumbnail from it.
+         *
+         * @return the thumbnail, or null if the stream ended first.
+         */
+        private Bitmap decodeFrame(MediaCodec decoder, ByteBuffer[] inputBuffers,
+                MediaExtractor extractor, long syncUsec, int videoWidth, int videoHeight) {
+            if (VERBOSE) Log.d(TAG, getName() + " decoding frame at " + syncUsec);
+            decoder.flush();
+            extractor.seekTo(syncUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+            boolean inputDone = false;
+            int tryAgainCount = 0;
+            while (true) {
+                if (!inputDone) {
+                    int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+                    if (inputBufIndex >= 0) {
+                        int chunkSize = extractor.readSampleData(inputBuffers[inputBufIndex], 0);
+                        if (chunkSize < 0) {
+                            decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                                    extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (++tryAgainCount > MAX_TRY_AGAIN) {
+                        throw new RuntimeException("decoder stalled at " + syncUsec);
+                    }
+                } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
+                        decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // not important for us
+                } else if (decoderStatus < 0) {
+                    throw new RuntimeException(
+                            "unexpected result from decoder.dequeueOutputBuffer: " +
+                                    decoderStatus);
+                } else {
+                    boolean render = mBufferInfo.size != 0 &&
+                            mBufferInfo.presentationTimeUs >= syncUsec;
+                    decoder.releaseOutputBuffer(decoderStatus, render);
+                    if (render) {
+                        return renderThumbnail(videoWidth, videoHeight);
+                    }
+                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits for the frame to arrive, then scales it into the pbuffer and reads it back.
+         */
+        private Bitmap renderThumbnail(int videoWidth, int videoHeight) {
+            synchronized (mFrameSyncObject) {
+                while (!mFrameAvailable) {
+                    try {
+                        mFrameSyncObject.wait(FRAME_WAIT_MSEC);
+                    } catch (InterruptedException ie) {
+                        // discard
+                    }
+                    if (!mFrameAvailable) {
+                        throw new RuntimeException("frame wait timed out");
+                    }
+                }
+                mFrameAvailable = false;
+            }
+            mSurfaceTexture.updateTexImage();
+            mSurfaceTexture.getTransformMatrix(mSTMatrix);
+            Matrix.multiplyMM(mTexMatrix, 0, mSTMatrix, 0, FLIP_MATRIX, 0);
+
+            // Fit the frame in the thumbnail, preserving aspect ratio.
+            int width = mThumbWidth;
+            int height = mThumbHeight;
+            if ((long) videoWidth * mThumbHeight > (long) videoHeight * mThumbWidth) {
+                height = (int) ((long) mThumbWidth * videoHeight / videoWidth);
+            } else {
+                width = (int) ((long) mThumbHeight * videoWidth / videoHeight);
+            }
+            GLES20.glViewport(0, 0, mThumbWidth, mThumbHeight);
+            GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLES20.glViewport((mThumbWidth - width) / 2, (mThumbHeight - height) / 2,
+                    width, height);
+            mExtRect.drawFrame(mTextureId, mTexMatrix);
+
+            mPixelBuf.rewind();
+            GLES20.glReadPixels(0, 0, mThumbWidth, mThumbHeight, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, mPixelBuf);
+            GlUtil.checkGlError("glReadPixels");
+            mPixelBuf.rewind();
+            Bitmap bitmap = Bitmap.createBitmap(mThumbWidth, mThumbHeight,
+                    Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(mPixelBuf);
+
+            synchronized (mLock) {
+                mDecodeCount++;
+            }
+            return bitmap;
+        }
+    }
+}
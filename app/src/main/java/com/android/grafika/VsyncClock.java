@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * MediaClock that ticks once per display refresh.  The time is that of the most recent
+ * vsync, from {@link VsyncTracker}, so everything that reads the clock during one refresh
+ * sees the same value, the way Choreographer callbacks do.
+ * <p>
+ * Shares the System.nanoTime() time base.  If vsync timing isn't available (e.g. the
+ * screen is off), falls back to the system clock.
+ */
+public class VsyncClock implements MediaClock {
+    private final VsyncTracker mTracker;
+    private long mLastNsec;
+
+    public VsyncClock() {
+        mTracker = VsyncTracker.getInstance();
+    }
+
+    @Override
+    public synchronized long nanoTime() {
+        long nowNsec = System.nanoTime();
+        long timeNsec = nowNsec;
+        if (mTracker.waitForTiming()) {
+            long periodNsec = mTracker.getPeriodNsec();
+            long vsyncNsec = mTracker.getLastVsyncNsec();
+            // The tracker may be a refresh or two behind; step forward to the latest.
+            timeNsec = vsyncNsec + Math.max((nowNsec - vsyncNsec) / periodNsec, 0) * periodNsec;
+        }
+        // Period estimates wobble, so make sure we never go backward.
+        mLastNsec = Math.max(mLastNsec, timeNsec);
+        return mLastNsec;
+    }
+
+    @Override
+    public void sleep(long nsec) {
+        MonotonicClock.getInstance().sleep(nsec);
+    }
+
+    @Override
+    public long fromSystemNanos(long systemNanos) {
+        return systemNanos;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Follows the display refresh, so code without a Looper (e.g. a decode thread) can line
+ * things up with vsync.
+ * <p>
+ * Choreographer only delivers callbacks to Looper threads, so we run one on a private
+ * HandlerThread and record the latest vsync time and an estimate of the refresh period.
+ * Choreographer frame times use the System.nanoTime() time base.
+ * <p>
+ * Receiving a callback every frame isn't free, so we stop asking for them if nobody has
+ * looked at the timing for a while, and start again on demand.
+ * <p>
+ * Thread-safe.
+ */
+public class VsyncTracker implements Choreographer.FrameCallback {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final long IDLE_TIMEOUT_NSEC = 1000000000L;
+    private static final long READY_TIMEOUT_MSEC = 200;
+    private static final int MIN_SAMPLES = 4;
+
+    private static VsyncTracker sInstance;
+
+    private final Handler mHandler;
+
+    // Guarded by "this".
+    private boolean mRunning;
+    private int mSampleCount;
+    private long mLastVsyncNsec;
+    private long mPeriodNsec;
+    private long mLastQueryNsec;
+
+    /**
+     * Returns the process-wide tracker, creating its thread if necessary.
+     */
+    public static synchronized VsyncTracker getInstance() {
+        if (sInstance == null) {
+            sInstance = new VsyncTracker();
+        }
+        return sInstance;
+    }
+
+    private VsyncTracker() {
+        HandlerThread thread = new HandlerThread("VsyncTracker");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Makes sure we're following vsync, and waits until we've seen enough frames to know
+     * the refresh period.  Returns false if that takes too long, e.g. because the screen
+     * is off.
+     */
+    public synchronized boolean waitForTiming() {
+        mLastQueryNsec = System.nanoTime();
+        if (!mRunning) {
+            mRunning = true;
+            mSampleCount = 0;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().postFrameCallback(VsyncTracker.this);
+                }
+            });
+        }
+        long deadlineMsec = System.currentTimeMillis() + READY_TIMEOUT_MSEC;
+        while (mSampleCount < MIN_SAMPLES) {
+            long waitMsec = deadlineMsec - System.currentTimeMillis();
+            if (waitMsec <= 0) {
+                Log.w(TAG, "HEY: timed out waiting for vsync");
+                return false;
+            }
+            try {
+                wait(waitMsec);
+            } catch (InterruptedException ie) {
+                // discard
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the time of the most recent vsync, in System.nanoTime() nanoseconds.  Only
+     * meaningful after {@link #waitForTiming()} returns true.
+     */
+    public synchronized long getLastVsyncNsec() {
+        mLastQueryNsec = System.nanoTime();
+        return mLastVsyncNsec;
+    }
+
+    /**
+     * Returns the estimated refresh period, in nanoseconds.  Only meaningful after
+     * {@link #waitForTiming()} returns true.
+     */
+    public synchronized long getPeriodNsec() {
+        mLastQueryNsec = System.nanoTime();
+        return mPeriodNsec;
+    }
+
+    /**
+     * Returns the time of the first vsync at or after "timeNsec".
+     */
+    public synchronized long getVsyncAtOrAfter(long timeNsec) {
+        mLastQueryNsec = System.nanoTime();
+        long periods = (timeNsec - mLastVsyncNsec + mPeriodNsec - 1) / mPeriodNsec;
+        return mLastVsyncNsec + Math.max(periods, 0) * mPeriodNsec;
+    }
+
+    /**
+     * Returns the time of the vsync nearest to "timeNsec".
+     */
+    public synchronized long getNearestVsync(long timeNsec) {
+        mLastQueryNsec = System.nanoTime();
+        long offsetNsec = timeNsec - mLastVsyncNsec;
+        long periods = (offsetNsec + (offsetNsec >= 0 ? 1 : -1) * mPeriodNsec / 2) /
+                mPeriodNsec;
+        return mLastVsyncNsec + periods * mPeriodNsec;
+    }
+
+    // runs on VsyncTracker thread
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (this) {
+            long deltaNsec = frameTimeNanos - mLastVsyncNsec;
+            if (mSampleCount == 0 || deltaNsec <= 0) {
+                // first sample, nothing to compare against
+            } else if (mSampleCount < MIN_SAMPLES) {
+                // Take the shortest interval as a starting point, in case we missed a frame.
+                if (mPeriodNsec == 0 || deltaNsec < mPeriodNsec) {
+                    mPeriodNsec = deltaNsec;
+                }
+            } else {
+                // If we missed frames, the interval covers more than one period.  Smooth
+                // out jitter with a simple running average.
+                long periods = Math.max((deltaNsec + mPeriodNsec / 2) / mPeriodNsec, 1);
+                mPeriodNsec += (deltaNsec / periods - mPeriodNsec) / 8;
+            }
+            mLastVsyncNsec = frameTimeNanos;
+            mSampleCount++;
+            if (mSampleCount == MIN_SAMPLES) {
+                Log.d(TAG, "VsyncTracker: refresh period " + mPeriodNsec + "ns");
+                notifyAll();
+            }
+
+            if (System.nanoTime() - mLastQueryNsec > IDLE_TIMEOUT_NSEC) {
+                if (VERBOSE) Log.d(TAG, "VsyncTracker idle, stopping");
+                mRunning = false;
+                mSampleCount = 0;
+                mPeriodNsec = 0;
+                return;
+            }
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaFormat;
+
+/**
+ * Memory layout of the YUV frames in a decoder's output ByteBuffers.
+ * <p>
+ * The luma plane starts at offset 0 and has "sliceHeight" rows of "stride" bytes.  The
+ * chroma data follows at offset stride * sliceHeight; whether it's planar (I420) or
+ * semi-planar (NV12) depends on the color format, which is one of the
+ * MediaCodecInfo.CodecCapabilities.COLOR_* constants.  Vendor-specific color formats are
+ * passed through as-is.  Only the crop rectangle holds picture data.
+ * <p>
+ * Immutable.
+ */
+public class YuvFormat {
+    // Not all of these are defined as constants before API 23.
+    private static final String KEY_STRIDE = "stride";
+    private static final String KEY_SLICE_HEIGHT = "slice-height";
+    private static final String KEY_CROP_LEFT = "crop-left";
+    private static final String KEY_CROP_TOP = "crop-top";
+    private static final String KEY_CROP_RIGHT = "crop-right";
+    private static final String KEY_CROP_BOTTOM = "crop-bottom";
+
+    public final int colorFormat;
+    public final int width;
+    public final int height;
+    public final int stride;            // bytes per luma row
+    public final int sliceHeight;       // luma rows before the chroma data starts
+    public final int cropLeft;          // crop rectangle, inclusive
+    public final int cropTop;
+    public final int cropRight;
+    public final int cropBottom;
+
+    private YuvFormat(int colorFormat, int width, int height, int stride, int sliceHeight,
+            int cropLeft, int cropTop, int cropRight, int cropBottom) {
+        this.colorFormat = colorFormat;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+        this.sliceHeight = sliceHeight;
+        this.cropLeft = cropLeft;
+        this.cropTop = cropTop;
+        this.cropRight = cropRight;
+        this.cropBottom = cropBottom;
+    }
+
+    /**
+     * Extracts the layout from a decoder's output format.  Missing stride and slice height
+     * default to the width and height; a missing crop rectangle defaults to the full frame.
+     */
+    public static YuvFormat fromMediaFormat(MediaFormat format) {
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int colorFormat = getInteger(format, MediaFormat.KEY_COLOR_FORMAT, 0);
+        // Some decoders report zero rather than leaving the key out.
+        int stride = Math.max(getInteger(format, KEY_STRIDE, width), width);
+        int sliceHeight = Math.max(getInteger(format, KEY_SLICE_HEIGHT, height), height);
+        return new YuvFormat(colorFormat, width, height, stride, sliceHeight,
+                getInteger(format, KEY_CROP_LEFT, 0),
+                getInteger(format, KEY_CROP_TOP, 0),
+                getInteger(format, KEY_CROP_RIGHT, width - 1),
+                getInteger(format, KEY_CROP_BOTTOM, height - 1));
+    }
+
+    private static int getInteger(MediaFormat format, String key, int defaultValue) {
+        return format.containsKey(key) ? format.getInteger(key) : defaultValue;
+    }
+
+    /**
+     * Returns the width of the visible picture.
+     */
+    public int getCropWidth() {
+        return cropRight - cropLeft + 1;
+    }
+
+    /**
+     * Returns the height of the visible picture.
+     */
+    public int getCropHeight() {
+        return cropBottom - cropTop + 1;
+    }
+
+    /**
+     * Returns the number of bytes in a 4:2:0 frame with this layout.  The decoder may
+     * hand us buffers that are a little larger or smaller (e.g. no padding after the last
+     * chroma row), so use the BufferInfo size when copying.
+     */
+    public int getFrameSize() {
+        return stride * sliceHeight * 3 / 2;
+    }
+
+    @Override
+    public String toString() {
+        return "YuvFormat[color=0x" + Integer.toHexString(colorFormat) + " " + width + "x" +
+                height + " stride=" + stride + " sliceHeight=" + sliceHeight + " crop=" +
+                cropLeft + "," + cropTop + "-" + cropRight + "," + cropBottom + "]";
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.Image;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Copies decoded YUV frames into a fixed set of reusable buffers.  For consumers that want
+ * to keep frames after MoviePlayer's YUV callback returns, e.g. to hand them to another
+ * thread.
+ * <p>
+ * Install it with {@link MoviePlayer#setYuvOutput}, in ByteBuffer mode.  Each frame is
+ * copied as-is, in the decoder's layout (see {@link Frame#format}), and passed to the
+ * Listener.  The Listener must {@link Frame#release()} every frame when it's done with it,
+ * from any thread.  If all buffers are in use when a new frame arrives, the new frame is
+ * dropped rather than holding up the decoder.
+ * <p>
+ * Buffers are direct, and allocated the first time they're needed.
+ */
+public class YuvFramePool implements MoviePlayer.YuvFrameCallback {
+    private static final String TAG = MainActivity.TAG;
+
+    private final int mMaxFrames;
+    private final Listener mListener;
+    private final ArrayList<Frame> mFree = new ArrayList<Frame>();
+    private int mAllocatedCount;
+    private int mDroppedCount;
+
+    /**
+     * Receives copied frames.
+     */
+    public interface Listener {
+        /**
+         * Called on the play() thread with each frame.  The frame must be released when
+         * the listener is done with it.
+         */
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * A copied frame.  Fields are valid until the frame is released.
+     */
+    public static class Frame {
+        private final YuvFramePool mPool;
+
+        /** The frame data, between position 0 and the limit. */
+        public ByteBuffer data;
+        public YuvFormat format;
+        public long presentationTimeUsec;
+
+        private Frame(YuvFramePool pool) {
+            mPool = pool;
+        }
+
+        /**
+         * Returns the frame to the pool.
+         */
+        public void release() {
+            mPool.recycle(this);
+        }
+    }
+
+    /**
+     * Creates a pool of up to "maxFrames" buffers.
+     */
+    public YuvFramePool(int maxFrames, Listener listener) {
+        if (maxFrames < 1) {
+            throw new IllegalArgumentException("need at least one frame");
+        }
+        mMaxFrames = maxFrames;
+        mListener = listener;
+    }
+
+    /**
+     * Returns the number of frames dropped because no buffer was free.
+     */
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    // runs on play() thread
+    @Override
+    public void onYuvFrame(ByteBuffer data, Image image, YuvFormat format,
+                           long presentationTimeUsec) {
+        if (data == null) {
+            throw new RuntimeException("YuvFramePool needs ByteBuffer output, not Image");
+        }
+        Frame frame = obtain();
+        if (frame == null) {
+            return;
+        }
+        int size = data.remaining();
+        if (frame.data == null || frame.data.capacity() < size) {
+            // First use, or the format changed.
+            frame.data = ByteBuffer.allocateDirect(size);
+        }
+        frame.data.clear();
+        frame.data.put(data);
+        frame.data.flip();
+        frame.format = format;
+        frame.presentationTimeUsec = presentationTimeUsec;
+        mListener.onFrame(frame);
+    }
+
+    private synchronized Frame obtain() {
+        if (!mFree.isEmpty()) {
+            return mFree.remove(mFree.size() - 1);
+        }
+        if (mAllocatedCount < mMaxFrames) {
+            mAllocatedCount++;
+            return new Frame(this);
+        }
+        mDroppedCount++;
+        if (mDroppedCount == 1) {
+            Log.w(TAG, "HEY: YuvFramePool exhausted, dropping frames");
+        }
+        return null;
+    }
+
+    private synchronized void recycle(Frame frame) {
+        if (mFree.contains(frame)) {
+            throw new RuntimeException("frame released twice");
+        }
+        mFree.add(frame);
+    }
+}
@@ -23,6 +23,7 @@ package com.android.grafika.gles;
 public class FullFrameRect {
     private final Drawable2d mRectDrawable = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
     private Texture2dProgram mProgram;
+    private boolean mOwnsProgram;
 
     /**
      * Prepares the object.
@@ -31,7 +32,20 @@ public class FullFrameRect {
      *                the program when no longer needed.
      */
     public FullFrameRect(Texture2dProgram program) {
+        this(program, true);
+    }
+
+    /**
+     * Prepares the object.
+     *
+     * @param program The program to use.
+     * @param ownsProgram If true, FullFrameRect takes ownership of the program, and will
+     *                release it when no longer needed.  Pass false for programs that belong
+     *                to someone else, e.g. a ProgramCache.
+     */
+    public FullFrameRect(Texture2dProgram program, boolean ownsProgram) {
         mProgram = program;
+        mOwnsProgram = ownsProgram;
     }
 
     /**
@@ -44,7 +58,7 @@ public class FullFrameRect {
      */
     public void release(boolean doEglCleanup) {
         if (mProgram != null) {
-            if (doEglCleanup) {
+            if (doEglCleanup && mOwnsProgram) {
                 mProgram.release();
             }
             mProgram = null;
@@ -59,13 +73,28 @@ public class FullFrameRect {
     }
 
     /**
-     * Changes the program.  The previous program will be released.
+     * Changes the program.  The previous program will be released (if we own it), and
+     * FullFrameRect takes ownership of the new one.
      * <p>
      * The appropriate EGL context must be current.
      */
     public void changeProgram(Texture2dProgram program) {
-        mProgram.release();
+        changeProgram(program, true);
+    }
+
+    /**
+     * Changes the program.  The previous program will be released if we own it.
+     * <p>
+     * The appropriate EGL context must be current.
+     *
+     * @param ownsProgram If true, FullFrameRect takes ownership of the new program.
+     */
+    public void changeProgram(Texture2dProgram program, boolean ownsProgram) {
+        if (mOwnsProgram && mProgram != program) {
+            mProgram.release();
+        }
         mProgram = program;
+        mOwnsProgram = ownsProgram;
     }
 
     /**
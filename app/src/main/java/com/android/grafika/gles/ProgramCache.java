@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.util.Log;
+
+import java.util.EnumMap;
+
+/**
+ * Keeps one compiled Texture2dProgram of each type, so switching between them doesn't mean
+ * compiling and linking shaders again.
+ * <p>
+ * The program type determines the shader source, so the type is the whole key.  Programs
+ * belong to the EGL context that was current when they were created; the cache remembers
+ * that context, and if it finds a different one current (e.g. GLSurfaceView quietly
+ * replaced its context), the old programs are dropped and new ones are built.
+ * <p>
+ * Programs handed out by the cache still belong to the cache -- don't release them, and
+ * give them to FullFrameRect with ownsProgram set to false.  Uniform state such as the
+ * filter kernel lives in the program, so everyone drawing with a given program sees the
+ * same values.  Use one cache per rendering thread.
+ * <p>
+ * Not thread-safe.
+ */
+public class ProgramCache {
+    private static final String TAG = GlUtil.TAG;
+
+    private final EnumMap<Texture2dProgram.ProgramType, Texture2dProgram> mPrograms =
+            new EnumMap<Texture2dProgram.ProgramType, Texture2dProgram>(
+                    Texture2dProgram.ProgramType.class);
+    private EGLContext mEglContext;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mStaleCount;
+
+    /**
+     * Returns the program of the requested type, compiling it if this is the first time it
+     * has been asked for in the current EGL context.
+     * <p>
+     * An EGL context must be current.
+     */
+    public Texture2dProgram get(Texture2dProgram.ProgramType programType) {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        if (context.equals(EGL14.EGL_NO_CONTEXT)) {
+            throw new RuntimeException("ProgramCache: no current EGL context");
+        }
+        if (mEglContext != null && !mEglContext.equals(context)) {
+            // The programs went away with their context; nothing to delete.
+            Log.w(TAG, "HEY: EGL context changed, dropping " + mPrograms.size() + " programs");
+            mPrograms.clear();
+            mStaleCount++;
+        }
+        mEglContext = context;
+
+        Texture2dProgram program = mPrograms.get(programType);
+        if (program != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+            program = new Texture2dProgram(programType);
+            mPrograms.put(programType, program);
+        }
+        return program;
+    }
+
+    /**
+     * Releases all cached programs.  The cache may be used again afterward, in the same
+     * or a different context.
+     * <p>
+     * As with FullFrameRect, pass false if the EGL context is about to be destroyed (or
+     * already has been), in which case the programs go with it and nothing needs to be
+     * current.  Otherwise the context that created them must be current.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup) {
+            for (Texture2dProgram program : mPrograms.values()) {
+                program.release();
+            }
+        }
+        mPrograms.clear();
+        mEglContext = null;
+    }
+
+    /**
+     * Returns the number of get() calls that found a compiled program.
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of get() calls that had to compile a program.
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the number of times cached programs were dropped because the EGL context
+     * changed without release() being called.
+     */
+    public int getStaleCount() {
+        return mStaleCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramCache hits=" + mHitCount + " misses=" + mMissCount + " stale=" +
+                mStaleCount + " cached=" + mPrograms.keySet();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Drives SpeedControlCallback with a SimulatedClock, so pacing decisions can be checked
+ * exactly and without waiting.
+ */
+public class SpeedControlCallbackTest {
+    private static final long FRAME_USEC = 33333;   // 30fps
+
+    private SimulatedClock mClock;
+    private SpeedControlCallback mCallback;
+
+    @Before
+    public void setUp() {
+        // Start at zero, like an AudioClock does.
+        mClock = new SimulatedClock(0);
+        mCallback = new SpeedControlCallback();
+        mCallback.setClock(mClock);
+    }
+
+    @Test
+    public void firstFrameAtTimeZeroIsLatched() {
+        mCallback.preRender(0);
+        assertEquals(0, mClock.nanoTime());
+
+        // The second frame must wait a frame time after the first, not latch again.
+        mCallback.preRender(FRAME_USEC);
+        assertEquals(FRAME_USEC * 1000, mClock.nanoTime());
+        mCallback.preRender(2 * FRAME_USEC);
+        assertEquals(2 * FRAME_USEC * 1000, mClock.nanoTime());
+    }
+
+    @Test
+    public void playbackRateScalesWaits() {
+        mCallback.setPlaybackRate(2.0f);
+        mCallback.preRender(0);
+        mCallback.preRender(FRAME_USEC);
+        assertEquals((FRAME_USEC / 2) * 1000, mClock.nanoTime());
+    }
+
+    @Test
+    public void resyncLatchesNextFrame() {
+        mCallback.preRender(0);
+        mCallback.preRender(FRAME_USEC);
+
+        // Jump somewhere else in the movie, some time later.  The next frame goes out
+        // immediately, and the one after that is paced against it.
+        mClock.advance(1000000000L);
+        long resumeNsec = mClock.nanoTime();
+        mCallback.resync();
+        mCallback.preRender(10 * FRAME_USEC);
+        assertEquals(resumeNsec, mClock.nanoTime());
+        mCallback.preRender(11 * FRAME_USEC);
+        assertEquals(resumeNsec + FRAME_USEC * 1000, mClock.nanoTime());
+    }
+
+    @Test
+    public void sleepOvershootDoesNotAccumulate() {
+        mClock.setSleepOvershoot(50000);    // 50us late on every sleep
+        mCallback.preRender(0);
+        for (int i = 1; i <= 100; i++) {
+            mCallback.preRender(i * FRAME_USEC);
+            long lateNsec = mClock.nanoTime() - i * FRAME_USEC * 1000;
+            // Each frame may be a single sleep late, but the error doesn't build up.
+            assertFalse("frame " + i + " late by " + lateNsec, lateNsec < 0 || lateNsec > 50000);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void requestStopBreaksOutOfStoppedClock() throws InterruptedException {
+        // A clock that never moves, like a paused AudioClock.  Sleeping takes real time.
+        MediaClock stoppedClock = new MediaClock() {
+            @Override
+            public long nanoTime() {
+                return 1000;
+            }
+
+            @Override
+            public void sleep(long nsec) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+
+            @Override
+            public long fromSystemNanos(long systemNanos) {
+                return systemNanos;
+            }
+        };
+        mCallback.setClock(stoppedClock);
+        mCallback.preRender(0);
+
+        Thread decodeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.preRender(FRAME_USEC);
+            }
+        });
+        decodeThread.start();
+        Thread.sleep(50);
+        mCallback.requestStop();
+        decodeThread.join();
+
+        // Later frames don't wait either.
+        mCallback.preRender(2 * FRAME_USEC);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import android.media.MediaCodec;
+
+import com.android.grafika.CircularEncoderBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-packet cost of CircularEncoderBuffer, fed with a synthetic encoder
+ * output stream.
+ * <p>
+ * Every benchmark runs against a buffer that has already wrapped around a couple of times,
+ * so add() includes the cost of evicting GOPs.  (canAdd() is private, and is measured as
+ * part of add().)  The getChunkWrapped benchmark reads only the packets that sit at the
+ * end of the ring, which is where the heap storage has to split and copy; comparing it
+ * with getChunk gives the cost of the wrap path.
+ * <p>
+ * Results are ns/packet.  Run with "-prof gc" (the default for the "jmh" Gradle task) to
+ * get the allocation rate; in steady state it should be zero for everything except
+ * getChunkWrapped with heap storage.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CircularEncoderBufferBenchmark {
+    private static final int DESIRED_SPAN_SEC = 7;   // same as ContinuousCaptureActivity
+    private static final int I_FRAME_WEIGHT = 8;     // I-frame vs. P-frame size
+    private static final int STREAM_GOPS = 16;       // length of the generated sequence
+
+    /** Stream shape: resolution and frame rate, with a typical AVC bit rate for each. */
+    @Param({"1080p30", "4k60"})
+    public String stream;
+
+    @Param({"heap", "direct", "mapped", "slabs"})
+    public String storage;
+
+    private CircularEncoderBuffer mBuffer;
+    private File mBackingFile;
+    private MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    // Synthetic packet stream, played in a loop.
+    private ByteBuffer mPacketData;
+    private int[] mPacketSize;
+    private int[] mPacketFlags;
+    private long mFrameDurationUsec;
+    private long mPtsUsec;
+    private int mNextPacket;
+
+    // Indices of packets held in the buffer, for the read benchmarks.
+    private int[] mIndices;
+    private int[] mWrappedIndices;
+    private int mNextIndex;
+    private int mNextWrappedIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int bitRate, frameRate;
+        if (stream.equals("1080p30")) {
+            bitRate = 12000000;
+            frameRate = 30;
+        } else if (stream.equals("4k60")) {
+            bitRate = 48000000;
+            frameRate = 60;
+        } else {
+            throw new RuntimeException("unknown stream " + stream);
+        }
+        generateStream(bitRate, frameRate);
+
+        if (storage.equals("heap")) {
+            mBuffer = new CircularEncoderBuffer(bitRate, frameRate, DESIRED_SPAN_SEC);
+        } else if (storage.equals("direct")) {
+            mBuffer = new CircularEncoderBuffer(bitRate, frameRate, DESIRED_SPAN_SEC,
+                    CircularEncoderBuffer.STORAGE_DIRECT, null);
+        } else if (storage.equals("mapped")) {
+            mBackingFile = File.createTempFile("cebench", ".ring");
+            mBuffer = new CircularEncoderBuffer(bitRate, frameRate, DESIRED_SPAN_SEC,
+                    CircularEncoderBuffer.STORAGE_MAPPED_FILE, mBackingFile);
+        } else if (storage.equals("slabs")) {
+            mBuffer = new CircularEncoderBuffer(bitRate, frameRate, DESIRED_SPAN_SEC,
+                    CircularEncoderBuffer.STORAGE_SLABS, null);
+        } else {
+            throw new RuntimeException("unknown storage " + storage);
+        }
+
+        // Get into steady state: full, and wrapped around a couple of times.
+        int frames = DESIRED_SPAN_SEC * frameRate * 3;
+        for (int i = 0; i < frames; i++) {
+            addNextPacket();
+        }
+        collectIndices();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (mBackingFile != null) {
+            mBackingFile.delete();
+        }
+    }
+
+    /**
+     * Generates a packet stream with one sync frame per second, like the app's encoders.
+     * Sizes are jittered so packets don't line up neatly with the end of the ring.
+     */
+    private void generateStream(int bitRate, int frameRate) {
+        int gopFrames = frameRate;
+        int count = gopFrames * STREAM_GOPS;
+        long bytesPerGop = bitRate / 8L;
+        int pFrameSize = (int) (bytesPerGop / (gopFrames - 1 + I_FRAME_WEIGHT));
+        Random rand = new Random(0x5eed);
+
+        mPacketSize = new int[count];
+        mPacketFlags = new int[count];
+        int maxSize = 0;
+        for (int i = 0; i < count; i++) {
+            boolean isSync = (i % gopFrames) == 0;
+            int size = isSync ? pFrameSize * I_FRAME_WEIGHT : pFrameSize;
+            size += (int) (size * (rand.nextFloat() - 0.5f) * 0.5f);    // +/- 25%
+            mPacketSize[i] = size;
+            mPacketFlags[i] = isSync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            maxSize = Math.max(maxSize, size);
+        }
+        mFrameDurationUsec = 1000000L / frameRate;
+
+        // Encoders hand us direct buffers.
+        mPacketData = ByteBuffer.allocateDirect(maxSize);
+        for (int i = 0; i < maxSize; i++) {
+            mPacketData.put(i, (byte) i);
+        }
+    }
+
+    private boolean addNextPacket() {
+        int packet = mNextPacket;
+        mNextPacket = (packet + 1) % mPacketSize.length;
+        mPacketData.limit(mPacketSize[packet]);
+        mPacketData.position(0);
+        boolean result = mBuffer.add(mPacketData, mPacketFlags[packet], mPtsUsec);
+        mPtsUsec += mFrameDurationUsec;
+        return result;
+    }
+
+    /**
+     * Finds the packets currently in the buffer, and the ones among them that are at the
+     * wrap point.
+     * <p>
+     * A packet is at the wrap point if it had to be copied out (heap storage), or if the
+     * packet after it starts earlier in the ring (the others, which never copy: it ran into
+     * the mirror region, or it was the last one in its slab).
+     */
+    private void collectIndices() {
+        int count = 0;
+        for (int index = mBuffer.getFirstIndex(); index >= 0;
+                index = mBuffer.getNextIndex(index)) {
+            count++;
+        }
+        mIndices = new int[count];
+        int[] wrapped = new int[count];
+        int wrappedCount = 0;
+
+        ByteBuffer ring = mBuffer.getChunk(mBuffer.getFirstIndex(), mInfo);
+        boolean canCopy = !storage.equals("slabs");
+        int i = 0;
+        for (int index = mBuffer.getFirstIndex(); index >= 0;
+                index = mBuffer.getNextIndex(index)) {
+            mIndices[i++] = index;
+            boolean copied = mBuffer.getChunk(index, mInfo) != ring && canCopy;
+            int start = mInfo.offset;
+            int next = mBuffer.getNextIndex(index);
+            if (copied) {
+                wrapped[wrappedCount++] = index;
+            } else if (next >= 0) {
+                boolean nextCopied = mBuffer.getChunk(next, mInfo) != ring && canCopy;
+                if (!nextCopied && mInfo.offset < start) {
+                    wrapped[wrappedCount++] = index;
+                }
+            }
+        }
+        if (wrappedCount == 0) {
+            throw new RuntimeException("buffer never wrapped");
+        }
+        mWrappedIndices = Arrays.copyOf(wrapped, wrappedCount);
+    }
+
+    /**
+     * Adds one packet, evicting the oldest GOP when the buffer is full.
+     */
+    @Benchmark
+    public boolean add() {
+        return addNextPacket();
+    }
+
+    @Benchmark
+    public int getFirstIndex() {
+        return mBuffer.getFirstIndex();
+    }
+
+    /**
+     * Reads packets in order, the way the muxer does.
+     */
+    @Benchmark
+    public ByteBuffer getChunk() {
+        int i = mNextIndex;
+        mNextIndex = (i + 1) % mIndices.length;
+        return mBuffer.getChunk(mIndices[i], mInfo);
+    }
+
+    /**
+     * Reads only packets at the wrap point.
+     */
+    @Benchmark
+    public ByteBuffer getChunkWrapped() {
+        int i = mNextWrappedIndex;
+        mNextWrappedIndex = (i + 1) % mWrappedIndices.length;
+        return mBuffer.getChunk(mWrappedIndices[i], mInfo);
+    }
+}